@@ -0,0 +1,248 @@
+package no.printf.slumber.bench;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import no.printf.slumber.JDBC;
+
+import org.openjdk.jmh.annotations.*;
+
+import sleep.runtime.*;
+
+
+/**
+ * JMH benchmarks for the JDBC bridge. The bridge functions are called from
+ * Sleep subroutines in a real ScriptInstance, the way scripts call them,
+ * against an embedded in-memory H2 database, so no database server is
+ * needed. Run them with "ant bench", which also reports allocation rates.
+ *
+ * The table has a given number of rows and columns. The columns after the
+ * id take turns being integers, strings and doubles.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JDBCBenchmark
+{
+
+    // The subroutines that are benchmarked. Each one reads the whole
+    // result of the query given as $2 and returns the number of rows.
+    private static final String SCRIPT =
+        "sub fetch {\n" +
+        "    local('$result $row $count');\n" +
+        "    $result = dbQuery($1, $2);\n" +
+        "    while $row (dbFetch($result)) { $count++; }\n" +
+        "    return $count;\n" +
+        "}\n" +
+        "sub assign {\n" +
+        "    local('$result %row $count');\n" +
+        "    $result = dbQuery($1, $2);\n" +
+        "    while (dbAssign($result, %row)) { $count++; }\n" +
+        "    return $count;\n" +
+        "}\n" +
+        "sub assignReuse {\n" +
+        "    local('$result %row $count');\n" +
+        "    $result = dbQuery($1, $2);\n" +
+        "    while (dbAssign($result, %row, 1)) { $count++; }\n" +
+        "    return $count;\n" +
+        "}\n" +
+        "sub fetchArray {\n" +
+        "    local('$result $row $count');\n" +
+        "    $result = dbQuery($1, $2);\n" +
+        "    while $row (dbFetchArray($result)) { $count++; }\n" +
+        "    return $count;\n" +
+        "}\n" +
+        "sub fetchBuffered {\n" +
+        "    return size(dbFetchBuffered(dbQuery($1, $2)));\n" +
+        "}\n" +
+        "sub fetchBufferedArray {\n" +
+        "    return size(dbFetchBufferedArray(dbQuery($1, $2)));\n" +
+        "}\n" +
+        "sub update {\n" +
+        "    return dbUpdate($1, $2);\n" +
+        "}\n" +
+        "sub prepareExecute {\n" +
+        "    return size(dbFetchBuffered(dbExecute(dbPrepare($1, $2, $3))));\n" +
+        "}\n";
+
+    @Param({ "10", "1000", "100000" })
+    public int rows;
+
+    @Param({ "4", "32" })
+    public int columns;
+
+    private Connection connection;
+    private ScriptInstance script;
+    private Scalar handle;
+    private Scalar select;
+    private Scalar update;
+    private Scalar selectById;
+    private int next;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        Class.forName("org.h2.Driver");
+        connection = DriverManager.getConnection("jdbc:h2:mem:bench" + rows + "x" + columns + ";DB_CLOSE_DELAY=-1", "sa", "");
+
+        Statement stmt = connection.createStatement();
+        StringBuilder create = new StringBuilder("CREATE TABLE bench (id INT PRIMARY KEY");
+
+        for (int i = 1; i < columns; i++) {
+            create.append(", c").append(i).append(JDBCBenchmark.columnType(i));
+        }
+
+        stmt.execute("DROP TABLE IF EXISTS bench");
+        stmt.execute(create.append(")").toString());
+        stmt.close();
+
+        // Fill the table
+        StringBuilder insert = new StringBuilder("INSERT INTO bench VALUES (?");
+
+        for (int i = 1; i < columns; i++) {
+            insert.append(", ?");
+        }
+
+        PreparedStatement fill = connection.prepareStatement(insert.append(")").toString());
+
+        for (int row = 0; row < rows; row++) {
+            fill.setInt(1, row);
+
+            for (int i = 1; i < columns; i++) {
+                switch (i % 3) {
+                    case 0:  fill.setInt(i + 1, row * i); break;
+                    case 1:  fill.setString(i + 1, "value " + row + " in column " + i); break;
+                    default: fill.setDouble(i + 1, row / (double)i);
+                }
+            }
+
+            fill.addBatch();
+
+            if (row % 1000 == 999) {
+                fill.executeBatch();
+            }
+        }
+
+        fill.executeBatch();
+        fill.close();
+
+        // Load the script with the bridge
+        ScriptLoader loader = new ScriptLoader();
+        loader.addGlobalBridge(new JDBC());
+        script = loader.loadScript("bench", SCRIPT, new Hashtable());
+        script.runScript();
+
+        handle = SleepUtils.getScalar(connection);
+        select = SleepUtils.getScalar("SELECT * FROM bench");
+        update = SleepUtils.getScalar("UPDATE bench SET id = id WHERE id = 0");
+        selectById = SleepUtils.getScalar("SELECT * FROM bench WHERE id = ?");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException
+    {
+        Statement stmt = connection.createStatement();
+        stmt.execute("DROP TABLE bench");
+        stmt.close();
+        connection.close();
+    }
+
+    // SQL type of a column after the id
+    private static String columnType(int column)
+    {
+        switch (column % 3) {
+            case 0:  return " INT";
+            case 1:  return " VARCHAR(64)";
+            default: return " DOUBLE";
+        }
+    }
+
+    // Calls a subroutine of the script with the given arguments
+    private Scalar call(String function, Scalar... args)
+    {
+        Stack stack = new Stack();
+
+        // Sleep takes the first argument from the top
+        for (int i = args.length - 1; i >= 0; i--) {
+            stack.push(args[i]);
+        }
+
+        return script.callFunction(function, stack);
+    }
+
+    @Benchmark
+    public int fetch()
+    {
+        return this.call("&fetch", handle, select).intValue();
+    }
+
+    @Benchmark
+    public int assign()
+    {
+        return this.call("&assign", handle, select).intValue();
+    }
+
+    @Benchmark
+    public int assignReuse()
+    {
+        return this.call("&assignReuse", handle, select).intValue();
+    }
+
+    @Benchmark
+    public int fetchArray()
+    {
+        return this.call("&fetchArray", handle, select).intValue();
+    }
+
+    @Benchmark
+    public int fetchBuffered()
+    {
+        return this.call("&fetchBuffered", handle, select).intValue();
+    }
+
+    @Benchmark
+    public int fetchBufferedArray()
+    {
+        return this.call("&fetchBufferedArray", handle, select).intValue();
+    }
+
+    @Benchmark
+    public int update()
+    {
+        return this.call("&update", handle, update).intValue();
+    }
+
+    @Benchmark
+    public int prepareExecute()
+    {
+        next = (next + 1) % rows;
+        return this.call("&prepareExecute", handle, selectById, SleepUtils.getScalar(next)).intValue();
+    }
+}
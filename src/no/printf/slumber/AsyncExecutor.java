@@ -0,0 +1,106 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Runs the asynchronous JDBC functions. Tasks run on virtual threads when
+ * the JVM supports them, and on a fixed pool of daemon threads otherwise.
+ * Either way at most MAX_RUNNING tasks run at the same time; the rest wait
+ * their turn.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class AsyncExecutor
+{
+
+    // Maximum number of tasks running at the same time
+    static final int MAX_RUNNING = 32;
+
+    // Limits the number of running tasks on virtual threads
+    private static final Semaphore running = new Semaphore(MAX_RUNNING, true);
+
+    // The executor, and whether it runs on virtual threads
+    private static final ExecutorService executor;
+    private static final boolean virtual;
+
+    static {
+        ExecutorService service = null;
+
+        try {
+            // Java 21 and later
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            service = (ExecutorService)factory.invoke(null);
+        }
+        catch(Exception e) {
+            // No virtual threads on this JVM
+        }
+
+        virtual = (service != null);
+
+        if (service == null) {
+            final AtomicInteger count = new AtomicInteger();
+
+            service = Executors.newFixedThreadPool(MAX_RUNNING, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "slumber-async-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        executor = service;
+    }
+
+
+    private AsyncExecutor()
+    {
+    }
+
+    /**
+     * Submits a task and returns its future
+     */
+    public static <T> Future<T> submit(final Callable<T> task)
+    {
+        if (!virtual) {
+            return executor.submit(task);
+        }
+
+        // Virtual threads are unbounded, so limit them here
+        return executor.submit(new Callable<T>() {
+            public T call() throws Exception {
+                running.acquire();
+
+                try {
+                    return task.call();
+                }
+                finally {
+                    running.release();
+                }
+            }
+        });
+    }
+}
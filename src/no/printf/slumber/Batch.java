@@ -0,0 +1,165 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.sql.*;
+import java.util.*;
+
+
+/**
+ * Pending batch of a statement used with dbAddBatch() and dbExecuteBatch().
+ * The batch is sent to the database automatically every flushSize rows,
+ * and the update counts are collected until the batch is executed.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class Batch
+{
+
+    // Batches by statement. The statements are only weakly referenced,
+    // so batches of statements that scripts drop go away with them.
+    private static final WeakRegistry<Statement, Batch> batches = new WeakRegistry<Statement, Batch>();
+
+    // Default number of rows sent to the database at a time
+    static final int DEFAULT_FLUSH_SIZE = 1000;
+
+    // Rows sent to the database at a time, 0 sends everything at once
+    private int flushSize = DEFAULT_FLUSH_SIZE;
+
+    // Rows added since the last flush
+    private int pending;
+
+    // Update counts of the rows flushed so far
+    private int[] counts = new int[16];
+    private int size;
+
+
+    private Batch()
+    {
+    }
+
+    /**
+     * Returns the batch of a statement, creating it if necessary
+     */
+    public static Batch of(Statement stmt)
+    {
+        Batch batch = batches.get(stmt);
+
+        if (batch == null) {
+            Batch created = new Batch();
+            batch = batches.putIfAbsent(stmt, created);
+
+            if (batch == null) {
+                batch = created;
+            }
+        }
+
+        return batch;
+    }
+
+    /**
+     * Sets the number of rows sent to the database at a time
+     */
+    public synchronized void setFlushSize(int flushSize)
+    {
+        this.flushSize = Math.max(0, flushSize);
+    }
+
+    /**
+     * Adds the current parameters of a prepared statement to the batch
+     */
+    public synchronized void add(PreparedStatement stmt) throws SQLException
+    {
+        stmt.addBatch();
+        this.added(stmt);
+    }
+
+    /**
+     * Adds an SQL update to the batch of a plain statement
+     */
+    public synchronized void add(Statement stmt, String sql) throws SQLException
+    {
+        stmt.addBatch(sql);
+        this.added(stmt);
+    }
+
+    /**
+     * Sends what is left of the batch to the database, and returns the
+     * update counts of every row added since the last execute.
+     */
+    public synchronized int[] execute(Statement stmt) throws SQLException
+    {
+        try {
+            this.flush(stmt);
+            return Arrays.copyOf(counts, size);
+        }
+        finally {
+            batches.remove(stmt);
+        }
+    }
+
+    // Flushes the batch when enough rows have been added
+    private void added(Statement stmt) throws SQLException
+    {
+        pending++;
+
+        if (flushSize > 0 && pending >= flushSize) {
+            this.flush(stmt);
+        }
+    }
+
+    // Sends the pending rows to the database. When the database rejects
+    // the batch, the exception carries the update counts of every row
+    // flushed so far, not only those of the failed flush.
+    private void flush(Statement stmt) throws SQLException
+    {
+        if (pending == 0) {
+            return;
+        }
+
+        pending = 0;
+
+        try {
+            this.append(stmt.executeBatch());
+        }
+        catch(BatchUpdateException e) {
+            if (e.getUpdateCounts() != null) {
+                this.append(e.getUpdateCounts());
+            }
+
+            BatchUpdateException failed = new BatchUpdateException(e.getMessage(), e.getSQLState(), e.getErrorCode(), Arrays.copyOf(counts, size));
+            failed.setNextException(e.getNextException());
+            failed.initCause(e);
+            throw failed;
+        }
+    }
+
+    // Collects update counts
+    private void append(int[] more)
+    {
+        if (size + more.length > counts.length) {
+            counts = Arrays.copyOf(counts, Math.max(counts.length * 2, size + more.length));
+        }
+
+        System.arraycopy(more, 0, counts, size, more.length);
+        size += more.length;
+    }
+}
@@ -0,0 +1,103 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.io.Serializable;
+import java.sql.*;
+import java.util.HashMap;
+
+
+/**
+ * The columns of a result set: their number, labels and JDBC types.
+ * This is read from the result set meta data once, and then shared by
+ * every row fetched from the result set.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class ColumnSchema implements Serializable
+{
+
+    private static final long serialVersionUID = 3380574925150046112L;
+
+    // Number of columns
+    final int count;
+
+    // Column labels, interned. Index 0 is the first column.
+    final String[] labels;
+
+    // Column types from java.sql.Types
+    final int[] types;
+
+    // Classes the driver returns the columns as, null if unknown. These
+    // tell apart types that share a java.sql.Types value, such as INT and
+    // INT UNSIGNED, or BIT(1) and BIT(8).
+    final String[] classes;
+
+    // Large object columns, which are read lazily
+    final boolean[] lobs;
+
+    // Column index (0-based) by label
+    private final HashMap<String, Integer> index;
+
+
+    ColumnSchema(ResultSetMetaData md) throws SQLException
+    {
+        count = md.getColumnCount();
+        labels = new String[count];
+        types = new int[count];
+        classes = new String[count];
+        lobs = new boolean[count];
+        index = new HashMap<String, Integer>(count * 2);
+
+        for (int i = 0; i < count; i++) {
+            labels[i] = md.getColumnLabel(i + 1).intern();
+            types[i] = md.getColumnType(i + 1);
+            classes[i] = ColumnSchema.classOf(md, i + 1);
+            lobs[i] = LobValue.isLob(types[i]);
+
+            // The first column wins if two columns share a label
+            if (!index.containsKey(labels[i])) {
+                index.put(labels[i], Integer.valueOf(i));
+            }
+        }
+    }
+
+    // Returns the class name of a column, or null if the driver can't tell
+    private static String classOf(ResultSetMetaData md, int column)
+    {
+        try {
+            return md.getColumnClassName(column);
+        }
+        catch(SQLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the 0-based index of the column with the given label,
+     * or -1 if there is no such column.
+     */
+    public int indexOf(String label)
+    {
+        Integer i = index.get(label);
+        return (i == null) ? -1 : i.intValue();
+    }
+}
@@ -0,0 +1,303 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.sql.*;
+import java.util.*;
+import sleep.runtime.*;
+
+
+/**
+ * A single column of a result set, stored in a primitive array of the
+ * column type: int, long and double columns in int[], long[] and double[]
+ * arrays, and boolean columns in a BitSet. String columns are dictionary
+ * encoded while they have few distinct values: every distinct string is
+ * kept once, and the rows hold an int code for it. Other columns are kept
+ * as the objects returned by the driver. Null values are marked in a
+ * separate BitSet.
+ *
+ * To a script the column is an array. Scalars are only created when an
+ * element is read, so wide numeric results take a fraction of the memory
+ * of one hash per row.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class ColumnVector extends LazyScalarArray
+{
+
+    private static final long serialVersionUID = -6409137213457014981L;
+
+    // How the values are stored
+    private static final int INT = 0;
+    private static final int LONG = 1;
+    private static final int DOUBLE = 2;
+    private static final int BOOLEAN = 3;
+    private static final int OBJECT = 4;
+    private static final int STRING = 5;
+
+    // Strings are no longer dictionary encoded once the dictionary has
+    // this many entries, or more than one for every other row
+    private static final int MAX_DICTIONARY = 1 << 16;
+    private static final int MIN_DICTIONARY = 256;
+
+    private int kind;
+
+    // Values, only the array of the column kind is used
+    private int[] ints;
+    private long[] longs;
+    private double[] doubles;
+    private BitSet booleans;
+    private Object[] objects;
+
+    // Dictionary encoded strings: the code of every row, the distinct
+    // strings, and the code of every string while reading
+    private int[] codes;
+    private ArrayList<String> dictionary;
+    private HashMap<String, Integer> dictionaryIndex;
+
+    // Rows that are null
+    private final BitSet nulls = new BitSet();
+
+    // Number of values
+    private int size;
+
+
+    /**
+     * Creates an empty column for the given type from java.sql.Types and
+     * the class the driver returns its values as (null if unknown), with
+     * room for the given number of values.
+     */
+    ColumnVector(int type, String className, int capacity)
+    {
+        capacity = Math.max(16, capacity);
+
+        // Unsigned integers may not fit the Java type of their SQL type,
+        // and BIT(n) is a boolean only for n = 1
+        if (type == Types.INTEGER && !"java.lang.Integer".equals(className)) {
+            type = Types.BIGINT;
+        }
+        else if (type == Types.BIGINT && "java.math.BigInteger".equals(className)) {
+            type = Types.OTHER;
+        }
+        else if (type == Types.BIT && className != null && !className.equals("java.lang.Boolean")) {
+            type = Types.OTHER;
+        }
+
+        switch (type) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                kind = INT;
+                ints = new int[capacity];
+                break;
+            case Types.BIGINT:
+                kind = LONG;
+                longs = new long[capacity];
+                break;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                kind = DOUBLE;
+                doubles = new double[capacity];
+                break;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                kind = BOOLEAN;
+                booleans = new BitSet(capacity);
+                break;
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+                kind = STRING;
+                codes = new int[capacity];
+                dictionary = new ArrayList<String>();
+                dictionaryIndex = new HashMap<String, Integer>();
+                break;
+            default:
+                kind = OBJECT;
+                objects = new Object[capacity];
+        }
+    }
+
+    /**
+     * Reads the value of a column in the current row of a resultset,
+     * using the getter of the column type, and adds it to the end.
+     */
+    void read(ResultSet result, int column) throws SQLException
+    {
+        switch (kind) {
+            case INT:
+                if (size == ints.length) {
+                    ints = Arrays.copyOf(ints, size * 2);
+                }
+                ints[size] = result.getInt(column);
+                break;
+            case LONG:
+                if (size == longs.length) {
+                    longs = Arrays.copyOf(longs, size * 2);
+                }
+                longs[size] = result.getLong(column);
+                break;
+            case DOUBLE:
+                if (size == doubles.length) {
+                    doubles = Arrays.copyOf(doubles, size * 2);
+                }
+                doubles[size] = result.getDouble(column);
+                break;
+            case BOOLEAN:
+                booleans.set(size, result.getBoolean(column));
+                break;
+            case STRING:
+                if (size == codes.length) {
+                    codes = Arrays.copyOf(codes, size * 2);
+                }
+
+                String value = result.getString(column);
+                int code = this.encode(value);
+
+                // The dictionary may just have been given up
+                if (kind == STRING) {
+                    codes[size] = code;
+                }
+                else {
+                    objects[size] = value;
+                }
+                break;
+            default:
+                if (size == objects.length) {
+                    objects = Arrays.copyOf(objects, size * 2);
+                }
+                objects[size] = result.getObject(column);
+        }
+
+        if (result.wasNull()) {
+            nulls.set(size);
+        }
+
+        size++;
+    }
+
+    /**
+     * Frees the room left over at the end once all values are read
+     */
+    void trim()
+    {
+        switch (kind) {
+            case INT:
+                ints = Arrays.copyOf(ints, size);
+                break;
+            case LONG:
+                longs = Arrays.copyOf(longs, size);
+                break;
+            case DOUBLE:
+                doubles = Arrays.copyOf(doubles, size);
+                break;
+            case OBJECT:
+                objects = Arrays.copyOf(objects, size);
+                break;
+            case STRING:
+                codes = Arrays.copyOf(codes, size);
+                dictionary.trimToSize();
+                dictionaryIndex = null;
+                break;
+        }
+    }
+
+    // Returns the dictionary code of a string, adding it if it is new
+    private int encode(String value)
+    {
+        if (value == null) {
+            return 0;
+        }
+
+        Integer code = dictionaryIndex.get(value);
+
+        if (code == null) {
+            code = Integer.valueOf(dictionary.size());
+            dictionary.add(value);
+            dictionaryIndex.put(value, code);
+
+            // Too many distinct values for a dictionary to pay off
+            if (dictionary.size() >= MAX_DICTIONARY || (dictionary.size() > MIN_DICTIONARY && dictionary.size() * 2 > size)) {
+                this.decode();
+            }
+        }
+
+        return code.intValue();
+    }
+
+    // Stores the strings as they are, instead of dictionary encoded
+    private void decode()
+    {
+        objects = new Object[codes.length];
+
+        for (int i = 0; i < size; i++) {
+            if (!nulls.get(i)) {
+                objects[i] = dictionary.get(codes[i]);
+            }
+        }
+
+        kind = OBJECT;
+        codes = null;
+        dictionary = null;
+        dictionaryIndex = null;
+    }
+
+    int length()
+    {
+        return size;
+    }
+
+    Scalar get(int index)
+    {
+        if (nulls.get(index)) {
+            return SleepUtils.getEmptyScalar();
+        }
+
+        switch (kind) {
+            case INT:
+                return SleepUtils.getScalar(ints[index]);
+            case LONG:
+                return SleepUtils.getScalar(longs[index]);
+            case DOUBLE:
+                return SleepUtils.getScalar(doubles[index]);
+            case BOOLEAN:
+                return SleepUtils.getScalar(booleans.get(index));
+            case STRING:
+                return SleepUtils.getScalar(dictionary.get(codes[index]));
+            default:
+                return SleepUtils.getScalar(objects[index]);
+        }
+    }
+
+    // The values are in a normal array now
+    void materialized()
+    {
+        ints = null;
+        longs = null;
+        doubles = null;
+        booleans = null;
+        objects = null;
+        codes = null;
+        dictionary = null;
+    }
+}
@@ -0,0 +1,466 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.*;
+import java.lang.reflect.*;
+import java.security.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A small connection pool used by dbPool(). Pools are shared by every
+ * script in the JVM (including fork()ed ones) and are identified by
+ * their url and credentials, so calling dbPool() repeatedly with the
+ * same arguments borrows from the same pool.
+ *
+ * The handles given out are proxies for the physical connection, which
+ * means they can be used anywhere a dbConnect() handle can. Closing a
+ * handle returns the physical connection to the pool. Handles that a
+ * script drops without closing them are reclaimed once they have been
+ * garbage collected, so their connections are not lost to the pool.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class ConnectionPool
+{
+
+    // All pools, keyed by a digest of the driver, url and credentials
+    private static final ConcurrentHashMap<String, ConnectionPool> pools = new ConcurrentHashMap<String, ConnectionPool>();
+
+    // Shared background thread that evicts idle connections
+    private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "slumber-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // Connection parameters
+    private final String url;
+    private final String username;
+    private final String password;
+
+    // Pool settings
+    private final int minSize;
+    private final int maxSize;
+    private final boolean validate;
+    private final long idleTimeout;
+    private final long maxWait;
+
+    // Seconds to wait for Connection.isValid() when validating
+    private static final int VALIDATION_TIMEOUT = 2;
+
+    // Idle connections, most recently used first
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+
+    // One permit for every connection that may be handed out
+    private final Semaphore permits;
+
+    // Number of physical connections, idle or borrowed
+    private final AtomicInteger size = new AtomicInteger();
+
+    // Handles given out, and the queue of those dropped without dbClose()
+    private final Set<Borrowed> borrowed = Collections.newSetFromMap(new ConcurrentHashMap<Borrowed, Boolean>());
+    private final ReferenceQueue<Connection> abandoned = new ReferenceQueue<Connection>();
+
+
+    private ConnectionPool(String url, String username, String password, int minSize, int maxSize, boolean validate, long idleTimeout, long maxWait)
+    {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.maxSize = Math.max(1, maxSize);
+        this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+        this.validate = validate;
+        this.idleTimeout = idleTimeout;
+        this.maxWait = maxWait;
+        this.permits = new Semaphore(this.maxSize, true);
+    }
+
+    /**
+     * Returns the pool for the given connection parameters, creating it
+     * if necessary. The settings are only used when the pool is created.
+     */
+    public static ConnectionPool getPool(String driver, String url, String username, String password,
+            int minSize, int maxSize, boolean validate, long idleTimeout, long maxWait) throws SQLException
+    {
+        String key = ConnectionPool.key(driver, url, username, password);
+
+        ConnectionPool pool = pools.get(key);
+
+        if (pool == null) {
+            ConnectionPool created = new ConnectionPool(url, username, password, minSize, maxSize, validate, idleTimeout, maxWait);
+            pool = pools.putIfAbsent(key, created);
+
+            if (pool == null) {
+                pool = created;
+
+                try {
+                    pool.start();
+                }
+                catch(SQLException e) {
+                    pools.remove(key, created);
+                    throw e;
+                }
+            }
+        }
+
+        return pool;
+    }
+
+    // Returns the key of a pool, a SHA-256 digest of its connection
+    // parameters so the password is not kept for as long as the pool
+    private static String key(String driver, String url, String username, String password)
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((driver + "\0" + url + "\0" + username + "\0" + password).getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(hash.length * 2);
+
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16));
+                key.append(Character.forDigit(b & 0xf, 16));
+            }
+
+            return key.toString();
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the physical connection behind a pooled handle, or the
+     * given connection itself if it is not a pooled handle.
+     */
+    public static Connection unwrap(Connection c)
+    {
+        if (c != null && Proxy.isProxyClass(c.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(c);
+
+            if (handler instanceof Handle) {
+                PooledConnection entry = ((Handle)handler).entry;
+
+                if (entry != null) {
+                    return entry.connection;
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Borrows a connection from the pool. Idle connections are validated
+     * before they are handed out, and a new physical connection is only
+     * opened when there are no idle ones left.
+     */
+    public Connection borrow() throws SQLException
+    {
+        this.reclaim();
+
+        try {
+            if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("timed out waiting for a pooled connection to " + url);
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a pooled connection");
+        }
+
+        try {
+            PooledConnection entry;
+
+            // Use the most recently returned connection that is still alive
+            while ((entry = idle.pollFirst()) != null) {
+                if (!validate || isValid(entry.connection)) {
+                    break;
+                }
+                discard(entry);
+            }
+
+            if (entry == null) {
+                entry = open();
+            }
+
+            Handle handle = new Handle(entry);
+            Connection proxy = (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class[] { Connection.class }, handle);
+
+            handle.reference = new Borrowed(proxy, handle, abandoned);
+            borrowed.add(handle.reference);
+            return proxy;
+        }
+        catch(SQLException e) {
+            permits.release();
+            throw e;
+        }
+        catch(RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a connection to the pool. Connections left in the middle of
+     * a transaction are rolled back before they can be borrowed again.
+     */
+    private void release(PooledConnection entry)
+    {
+        try {
+            if (entry.connection.isClosed()) {
+                discard(entry);
+                return;
+            }
+
+            // Streams the script did not finish would block the connection
+            ConnectionState.reset(entry.connection);
+
+            if (!entry.connection.getAutoCommit()) {
+                entry.connection.rollback();
+                entry.connection.setAutoCommit(true);
+            }
+
+            entry.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(entry);
+        }
+        catch(SQLException e) {
+            discard(entry);
+        }
+        finally {
+            permits.release();
+        }
+    }
+
+    // Returns the connections of handles that were garbage collected
+    // without being closed
+    private void reclaim()
+    {
+        Reference<? extends Connection> ref;
+
+        while ((ref = abandoned.poll()) != null) {
+            Borrowed lost = (Borrowed)ref;
+            borrowed.remove(lost);
+
+            PooledConnection entry = lost.handle.take();
+
+            if (entry != null) {
+                this.release(entry);
+            }
+        }
+    }
+
+    // Opens the minimum number of connections and schedules eviction
+    private void start() throws SQLException
+    {
+        fill();
+
+        long period = Math.max(1000, idleTimeout / 2);
+
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evict();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Closes connections that have been idle for too long, oldest first,
+    // and then tops the pool back up to its minimum size.
+    private void evict()
+    {
+        this.reclaim();
+
+        long now = System.currentTimeMillis();
+        PooledConnection entry;
+
+        while (size.get() > minSize && (entry = idle.pollLast()) != null) {
+            if (now - entry.lastUsed > idleTimeout) {
+                discard(entry);
+            }
+            else {
+                idle.offerLast(entry);
+                break;
+            }
+        }
+
+        try {
+            fill();
+        }
+        catch(SQLException e) {
+            // The database may be down; try again on the next run
+        }
+    }
+
+    // Opens connections until the pool has reached its minimum size
+    private void fill() throws SQLException
+    {
+        while (size.get() < minSize) {
+            PooledConnection entry = open();
+            entry.lastUsed = System.currentTimeMillis();
+            idle.offerLast(entry);
+        }
+    }
+
+    // Opens a new physical connection
+    private PooledConnection open() throws SQLException
+    {
+        Connection c = DriverManager.getConnection(url, username, password);
+        size.incrementAndGet();
+        return new PooledConnection(c);
+    }
+
+    // Closes a physical connection and removes it from the pool
+    private void discard(PooledConnection entry)
+    {
+        size.decrementAndGet();
+        ConnectionState.remove(entry.connection);
+
+        try {
+            entry.connection.close();
+        }
+        catch(SQLException e) {
+            // Nothing more we can do with it
+        }
+    }
+
+    // Checks if a connection is still usable
+    static boolean isValid(Connection c)
+    {
+        try {
+            return c.isValid(VALIDATION_TIMEOUT);
+        }
+        catch(AbstractMethodError e) {
+
+            // Pre-JDBC 4 driver, fall back to the closed flag
+            try {
+                return !c.isClosed();
+            }
+            catch(SQLException ex) {
+                return false;
+            }
+        }
+        catch(SQLException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * A physical connection owned by the pool
+     */
+    private static class PooledConnection
+    {
+        final Connection connection;
+        volatile long lastUsed;
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+
+    /**
+     * Reference to a handle given out by borrow(), queued once the script
+     * no longer holds the handle. The invocation handler is kept so the
+     * connection can still be taken back.
+     */
+    private static class Borrowed extends WeakReference<Connection>
+    {
+        final Handle handle;
+
+        Borrowed(Connection proxy, Handle handle, ReferenceQueue<Connection> queue) {
+            super(proxy, queue);
+            this.handle = handle;
+        }
+    }
+
+
+    /**
+     * Invocation handler for the handles given out by borrow(). Every
+     * call is passed on to the physical connection, except close()
+     * which returns the connection to the pool.
+     */
+    private class Handle implements InvocationHandler
+    {
+        private volatile PooledConnection entry;
+        Borrowed reference;
+
+        Handle(PooledConnection entry) {
+            this.entry = entry;
+        }
+
+        // Takes the connection away from the handle, only once
+        synchronized PooledConnection take() {
+            PooledConnection e = entry;
+            entry = null;
+            return e;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+
+            if (name.equals("close")) {
+                PooledConnection e = this.take();
+
+                if (e != null) {
+                    borrowed.remove(reference);
+                    release(e);
+                }
+                return null;
+            }
+            else if (name.equals("isClosed")) {
+                return Boolean.valueOf(entry == null);
+            }
+            else if (name.equals("equals")) {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            else if (name.equals("hashCode")) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            else if (name.equals("toString")) {
+                return "pooled connection to " + url;
+            }
+
+            PooledConnection e = entry;
+
+            if (e == null) {
+                throw new SQLException("connection has been returned to the pool");
+            }
+
+            try {
+                return method.invoke(e.connection, args);
+            }
+            catch(InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+}
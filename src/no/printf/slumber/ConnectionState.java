@@ -0,0 +1,413 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * State kept by the JDBC bridge for every physical connection. Pooled
+ * handles share the state of the connection behind them, so cached
+ * statements survive a connection being returned to the pool.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class ConnectionState
+{
+
+    // State for every connection in use, keyed by physical connection
+    private static final ConcurrentHashMap<Connection, ConnectionState> states = new ConcurrentHashMap<Connection, ConnectionState>();
+
+    // Number of states before closed connections are swept out
+    private static final int SWEEP_THRESHOLD = 64;
+
+    // Cache of plain statements
+    final StatementCache statements;
+
+    // Cache of prepared statements
+    final PreparedStatementCache prepared;
+
+    // Query statistics for the connection
+    final QueryStats.Counter stats = new QueryStats.Counter();
+
+    // Lets the asynchronous operations on the connection run one at a time.
+    // The lock is fair, so they get their turn in the order they asked for
+    // it, and unlike a monitor it does not pin the carrier of a virtual
+    // thread that waits for the database.
+    private final ReentrantLock asyncLock = new ReentrantLock(true);
+
+    // Statement collecting the updates added with dbAddBatch()
+    private Statement batchStatement;
+
+    // Rows sent to the database at a time by the batch statement
+    private int batchSize = Batch.DEFAULT_FLUSH_SIZE;
+
+    // Grouped commits: statements and milliseconds per commit, 0 if unused
+    private volatile int groupSize;
+    private volatile long groupMillis;
+
+    // Statements since the last grouped commit, and when it was
+    private int groupPending;
+    private long groupStart;
+
+    // Default statement timeout in milliseconds, 0 for none
+    private volatile long timeout;
+
+    // Statements that belong to a single result set, such as those of
+    // dbQueryStream(), closed with the connection if the script never
+    // reads their result to the end
+    private final Set<Statement> owned = Collections.newSetFromMap(new ConcurrentHashMap<Statement, Boolean>());
+
+    // Statements being executed, for dbCancel()
+    private final Set<StatementTimeout> running = new HashSet<StatementTimeout>();
+
+
+    private ConnectionState(Connection connection)
+    {
+        this.statements = new StatementCache(connection);
+        this.prepared = new PreparedStatementCache(connection);
+    }
+
+    /**
+     * Returns the state for a connection, creating it if necessary
+     */
+    public static ConnectionState of(Connection c)
+    {
+        Connection physical = ConnectionPool.unwrap(ReplicaRouter.unwrap(c));
+        ConnectionState state = states.get(physical);
+
+        if (state == null) {
+            if (states.size() >= SWEEP_THRESHOLD) {
+                sweep();
+            }
+
+            ConnectionState created = new ConnectionState(physical);
+            state = states.putIfAbsent(physical, created);
+
+            if (state == null) {
+                state = created;
+            }
+        }
+
+        return state;
+    }
+
+    /**
+     * Returns the state for a connection, or null if it has none
+     */
+    public static ConnectionState get(Connection c)
+    {
+        return states.get(ConnectionPool.unwrap(ReplicaRouter.unwrap(c)));
+    }
+
+    /**
+     * Cleans up what a script left on a pooled connection that is being
+     * returned to the pool
+     */
+    public static void reset(Connection physical)
+    {
+        ConnectionState state = states.get(physical);
+
+        if (state != null) {
+            state.closeOwned();
+            state.endGrouping();
+            state.timeout = 0;
+        }
+    }
+
+    /**
+     * Drops the state of a physical connection that is being closed
+     */
+    public static void remove(Connection physical)
+    {
+        ConnectionState state = states.remove(physical);
+
+        if (state != null) {
+            state.clear();
+        }
+    }
+
+    /**
+     * Returns the statement collecting dbAddBatch() updates, borrowing
+     * one from the statement cache if there is no batch pending
+     */
+    public synchronized Statement getBatchStatement() throws SQLException
+    {
+        if (batchStatement == null) {
+            batchStatement = statements.borrow();
+            Batch.of(batchStatement).setFlushSize(batchSize);
+        }
+        return batchStatement;
+    }
+
+    /**
+     * Removes the batch statement so it can be executed, or returns null
+     * if no updates have been added
+     */
+    public synchronized Statement takeBatchStatement()
+    {
+        Statement stmt = batchStatement;
+        batchStatement = null;
+        return stmt;
+    }
+
+    /**
+     * Sets the number of rows sent at a time by batch statements
+     */
+    public synchronized void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+
+        if (batchStatement != null) {
+            Batch.of(batchStatement).setFlushSize(batchSize);
+        }
+    }
+
+    /**
+     * Turns grouped commits on or off. While they are on the connection is
+     * not in autocommit mode, and the work is committed every size updates,
+     * or at the first update millis after the last commit. Pending work is
+     * committed when grouped commits are turned off again with zeroes.
+     */
+    public synchronized void setCommitGroup(Connection c, int size, long millis) throws SQLException
+    {
+        boolean grouping = size > 0 || millis > 0;
+
+        if (this.isGrouping()) {
+            c.commit();
+        }
+
+        groupSize = Math.max(0, size);
+        groupMillis = Math.max(0, millis);
+        groupPending = 0;
+        groupStart = System.currentTimeMillis();
+
+        c.setAutoCommit(!grouping);
+    }
+
+    /**
+     * Checks if grouped commits are on
+     */
+    public boolean isGrouping()
+    {
+        return groupSize > 0 || groupMillis > 0;
+    }
+
+    /**
+     * Called after every update on the connection, commits if the group
+     * is full or old enough
+     */
+    public void updated(Connection c) throws SQLException
+    {
+        // Quick check for the common case
+        if (!this.isGrouping()) {
+            return;
+        }
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            groupPending++;
+
+            if ((groupSize > 0 && groupPending >= groupSize) || (groupMillis > 0 && now - groupStart >= groupMillis)) {
+                c.commit();
+                groupPending = 0;
+                groupStart = now;
+            }
+        }
+    }
+
+    /**
+     * Ends the current transaction, and starts a new group if grouped
+     * commits are on
+     */
+    public synchronized void endTransaction(Connection c, boolean commit) throws SQLException
+    {
+        if (c.getAutoCommit()) {
+            throw new SQLException("no transaction in progress");
+        }
+
+        if (commit) {
+            c.commit();
+        }
+        else {
+            c.rollback();
+        }
+
+        groupPending = 0;
+        groupStart = System.currentTimeMillis();
+
+        if (!this.isGrouping()) {
+            c.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Sets the default timeout in milliseconds of the statements executed
+     * on the connection, 0 for none
+     */
+    public void setTimeout(long timeout)
+    {
+        this.timeout = Math.max(0, timeout);
+    }
+
+    /**
+     * Returns the default statement timeout in milliseconds
+     */
+    public long getTimeout()
+    {
+        return timeout;
+    }
+
+    /**
+     * Keeps track of the statements being executed on the connection
+     */
+    public void running(StatementTimeout stmt, boolean started)
+    {
+        synchronized (running) {
+            if (started) {
+                running.add(stmt);
+            }
+            else {
+                running.remove(stmt);
+            }
+        }
+    }
+
+    /**
+     * Cancels every statement being executed on the connection, and
+     * returns how many there were
+     */
+    public int cancel()
+    {
+        StatementTimeout[] stmts;
+
+        synchronized (running) {
+            stmts = running.toArray(new StatementTimeout[running.size()]);
+        }
+
+        for (int i = 0; i < stmts.length; i++) {
+            stmts[i].cancel();
+        }
+
+        return stmts.length;
+    }
+
+    /**
+     * Waits for the turn of an asynchronous operation on the connection.
+     * Every call must be followed by unlock().
+     */
+    public void lock() throws InterruptedException
+    {
+        asyncLock.lockInterruptibly();
+    }
+
+    /**
+     * Ends the turn of an asynchronous operation on the connection
+     */
+    public void unlock()
+    {
+        asyncLock.unlock();
+    }
+
+    /**
+     * Keeps track of a statement that belongs to a single result set, so
+     * it is closed with the connection
+     */
+    public void own(Statement stmt)
+    {
+        owned.add(stmt);
+    }
+
+    /**
+     * Forgets a statement given to own(), once it has been closed
+     */
+    public void disown(Statement stmt)
+    {
+        owned.remove(stmt);
+    }
+
+    /**
+     * Gives a statement back to whichever cache it was borrowed from.
+     * Returns false if neither cache knows the statement.
+     */
+    public boolean release(Statement stmt)
+    {
+        return statements.release(stmt) || prepared.release(stmt);
+    }
+
+    // Turns grouped commits off without committing, for a connection that
+    // is going back to its pool and is rolled back there
+    private synchronized void endGrouping()
+    {
+        groupSize = 0;
+        groupMillis = 0;
+        groupPending = 0;
+    }
+
+    // Closes the statements of result sets that were not read to the end
+    private void closeOwned()
+    {
+        Iterator<Statement> it = owned.iterator();
+
+        while (it.hasNext()) {
+            Statement stmt = it.next();
+            it.remove();
+
+            try {
+                stmt.close();
+            }
+            catch(SQLException e) {
+                // The statement is gone either way
+            }
+        }
+    }
+
+    // Releases everything held for the connection
+    private void clear()
+    {
+        this.closeOwned();
+        statements.clear();
+        prepared.clear();
+    }
+
+    // Drops the state of connections that were closed without dbClose()
+    private static void sweep()
+    {
+        Iterator<Map.Entry<Connection, ConnectionState>> it = states.entrySet().iterator();
+
+        while (it.hasNext()) {
+            Map.Entry<Connection, ConnectionState> entry = it.next();
+
+            try {
+                if (entry.getKey().isClosed()) {
+                    it.remove();
+                    entry.getValue().clear();
+                }
+            }
+            catch(SQLException e) {
+                // Leave it for the next sweep
+            }
+        }
+    }
+}
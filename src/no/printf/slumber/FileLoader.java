@@ -0,0 +1,438 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.*;
+import java.util.*;
+
+
+/**
+ * Loads a delimited text file (CSV, TSV and the like) into a table for
+ * dbLoadFile(). The file is read through a file channel in large blocks
+ * and parsed a byte at a time, so the only objects created per row are
+ * the field values themselves. Rows are inserted with a cached prepared
+ * statement in JDBC batches, and committed every few thousand rows
+ * unless the script has a transaction of its own open.
+ *
+ * Fields may be quoted, with the quote doubled inside a quoted field.
+ * Empty unquoted fields are inserted as NULL. Lines that do not have one
+ * field per column are rejected and counted. The file must be in an
+ * encoding where the delimiter, quote and line breaks are single bytes,
+ * such as UTF-8 or ISO-8859-1.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class FileLoader
+{
+
+    // Bytes read from the file at a time
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    // Settings
+    private final byte delimiter;
+    private final byte quote;
+    private final boolean header;
+    private final String columns;
+    private final int batchSize;
+    private final int commitSize;
+    private final Charset charset;
+
+    // Results of the last load
+    long rows;
+    long rejected;
+    long nanos;
+
+    // Parser state. The field being parsed is collected in a buffer that
+    // is reused for every field.
+    private byte[] field = new byte[256];
+    private int fieldLength;
+    private boolean fieldQuoted;
+    private boolean inQuotes;
+    private boolean quotePending;
+    private boolean returnPending;
+    private boolean lineEmpty = true;
+    private boolean headerRead;
+
+    // Values of the line being parsed
+    private String[] values = new String[16];
+    private int valueCount;
+
+    // Number of fields in a line, once known
+    private int width = -1;
+
+    // Statement inserting the rows, once the columns are known
+    private Connection connection;
+    private String table;
+    private PreparedStatement stmt;
+    private boolean commits;
+    private int pending;
+    private long uncommitted;
+
+
+    FileLoader(char delimiter, char quote, boolean header, String columns, int batchSize, int commitSize, Charset charset)
+    {
+        this.delimiter = (byte)delimiter;
+        this.quote = (byte)quote;
+        this.header = header;
+        this.columns = columns;
+        this.batchSize = Math.max(1, batchSize);
+        this.commitSize = Math.max(0, commitSize);
+        this.charset = charset;
+    }
+
+    /**
+     * Loads a file into a table. Rows inserted before an error are rolled
+     * back, unless they were already committed.
+     */
+    public void load(Connection c, String table, File file) throws IOException, SQLException
+    {
+        long start = System.nanoTime();
+        FileChannel channel = new FileInputStream(file).getChannel();
+
+        this.connection = c;
+        this.table = table;
+        this.commits = c.getAutoCommit();
+
+        if (columns != null) {
+            width = columns.split(",").length;
+        }
+
+        boolean done = false;
+        Throwable failure = null;
+
+        try {
+            if (commits) {
+                c.setAutoCommit(false);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            byte[] bytes = buffer.array();
+
+            while (channel.read(buffer) != -1) {
+                this.parse(bytes, buffer.position());
+                buffer.clear();
+            }
+
+            this.finish();
+
+            if (stmt != null && pending > 0) {
+                stmt.executeBatch();
+            }
+
+            if (commits) {
+                c.commit();
+            }
+
+            done = true;
+        }
+        catch(Throwable e) {
+            failure = e;
+            throw e;
+        }
+        finally {
+            channel.close();
+
+            if (stmt != null) {
+                if (!done) {
+                    try {
+                        stmt.clearBatch();
+                    }
+                    catch(SQLException e) {
+                        // The statement is going back to the cache anyway
+                    }
+                }
+                ConnectionState.of(c).release(stmt);
+            }
+
+            if (commits) {
+                if (!done) {
+                    rows -= uncommitted;
+
+                    try {
+                        c.rollback();
+                    }
+                    catch(SQLException e) {
+                        FileLoader.suppress(failure, e);
+                    }
+                }
+
+                try {
+                    c.setAutoCommit(true);
+                }
+                catch(SQLException e) {
+                    FileLoader.suppress(failure, e);
+                }
+            }
+
+            nanos = System.nanoTime() - start;
+        }
+    }
+
+    // Throws an exception from cleaning up, unless the load already failed,
+    // in which case it is added to that failure instead of hiding it
+    private static void suppress(Throwable failure, SQLException e) throws SQLException
+    {
+        if (failure == null) {
+            throw e;
+        }
+
+        failure.addSuppressed(e);
+    }
+
+    // Parses a block of the file
+    private void parse(byte[] bytes, int length) throws SQLException
+    {
+        for (int i = 0; i < length; i++) {
+            byte b = bytes[i];
+
+            if (inQuotes) {
+                if (quotePending) {
+                    quotePending = false;
+
+                    if (b == quote) {
+                        this.append(b);
+                        continue;
+                    }
+
+                    // The quote ended the field, carry on as unquoted
+                    inQuotes = false;
+                }
+                else if (b == quote) {
+                    quotePending = true;
+                    continue;
+                }
+                else {
+                    this.append(b);
+                    continue;
+                }
+            }
+
+            // A carriage return is only dropped as part of a Windows line
+            // break, anywhere else it belongs to the field
+            if (returnPending) {
+                returnPending = false;
+
+                if (b != '\n') {
+                    this.append((byte)'\r');
+                    lineEmpty = false;
+                }
+            }
+
+            if (b == delimiter) {
+                this.endField();
+                lineEmpty = false;
+            }
+            else if (b == '\n') {
+                this.endField();
+                this.endLine();
+            }
+            else if (b == '\r') {
+                // Part of a Windows line break if a line feed follows
+                returnPending = true;
+            }
+            else if (b == quote && fieldLength == 0 && !fieldQuoted) {
+                inQuotes = true;
+                fieldQuoted = true;
+                lineEmpty = false;
+            }
+            else {
+                this.append(b);
+                lineEmpty = false;
+            }
+        }
+    }
+
+    // Handles a last line without a line break
+    private void finish() throws SQLException
+    {
+        // A carriage return at the very end is taken as the line break
+        returnPending = false;
+
+        if (quotePending) {
+            quotePending = false;
+            inQuotes = false;
+        }
+
+        if (inQuotes) {
+            // The file ended inside a quoted field
+            inQuotes = false;
+            valueCount = 0;
+            this.resetField();
+            rejected++;
+            return;
+        }
+
+        if (!lineEmpty || fieldLength > 0) {
+            this.endField();
+            this.endLine();
+        }
+    }
+
+    // Adds a byte to the field being parsed
+    private void append(byte b)
+    {
+        if (fieldLength == field.length) {
+            field = Arrays.copyOf(field, field.length * 2);
+        }
+        field[fieldLength++] = b;
+    }
+
+    // Stores the field being parsed as a value of the line
+    private void endField()
+    {
+        if (valueCount == values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+
+        if (fieldLength == 0 && !fieldQuoted) {
+            values[valueCount++] = null;
+        }
+        else {
+            values[valueCount++] = new String(field, 0, fieldLength, charset);
+        }
+
+        this.resetField();
+    }
+
+    private void resetField()
+    {
+        fieldLength = 0;
+        fieldQuoted = false;
+    }
+
+    // Inserts the values of a complete line
+    private void endLine() throws SQLException
+    {
+        int count = valueCount;
+        boolean empty = lineEmpty;
+
+        valueCount = 0;
+        lineEmpty = true;
+
+        if (empty) {
+            return;
+        }
+
+        if (stmt == null) {
+
+            // The header names the columns, unless they were given
+            if (header && !headerRead) {
+                headerRead = true;
+
+                if (columns == null) {
+                    width = count;
+                    this.prepare(this.getColumnList(count));
+                }
+                return;
+            }
+
+            if (width < 0) {
+                width = count;
+            }
+
+            this.prepare(columns);
+        }
+
+        if (count != width) {
+            rejected++;
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (values[i] == null) {
+                stmt.setNull(i + 1, Types.NULL);
+            }
+            else {
+                stmt.setString(i + 1, values[i]);
+            }
+        }
+
+        stmt.addBatch();
+        rows++;
+        uncommitted++;
+
+        if (++pending >= batchSize) {
+            pending = 0;
+            stmt.executeBatch();
+        }
+
+        if (commits && commitSize > 0 && uncommitted >= commitSize) {
+            if (pending > 0) {
+                pending = 0;
+                stmt.executeBatch();
+            }
+
+            connection.commit();
+            uncommitted = 0;
+        }
+    }
+
+    // Quotes the column names from the header line
+    private String getColumnList(int count) throws SQLException
+    {
+        String q = connection.getMetaData().getIdentifierQuoteString();
+        StringBuilder list = new StringBuilder();
+
+        if (q == null || q.trim().length() == 0) {
+            q = "";
+        }
+
+        for (int i = 0; i < count; i++) {
+            String name = (values[i] == null) ? "" : values[i].trim();
+
+            if (name.length() == 0 || (q.length() > 0 && name.indexOf(q) >= 0)) {
+                throw new SQLException("invalid column name in header: '" + name + "'");
+            }
+
+            if (i > 0) {
+                list.append(", ");
+            }
+            list.append(q).append(name).append(q);
+        }
+
+        return list.toString();
+    }
+
+    // Prepares the insert, for the given columns or all of them
+    private void prepare(String columnList) throws SQLException
+    {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table);
+
+        if (columnList != null) {
+            sql.append(" (").append(columnList).append(")");
+        }
+
+        sql.append(" VALUES (");
+
+        for (int i = 0; i < width; i++) {
+            sql.append((i == 0) ? "?" : ", ?");
+        }
+
+        sql.append(")");
+
+        stmt = ConnectionState.of(connection).prepared.prepare(sql.toString());
+        QueryStats.prepared(stmt, sql.toString());
+    }
+}
@@ -19,7 +19,10 @@ package no.printf.slumber;
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
  */
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
 
 import sleep.interfaces.*;
 import sleep.runtime.*;
@@ -40,14 +43,17 @@ import java.sql.*;
 public class JDBC implements Loadable
 {
 
-    // Number of fetched rows in the previous SQL query
-    private static int fetchedRows;
+    // Number of fetched rows in the previous SQL query of each script
+    private static final Map<ScriptInstance, Integer> fetchedRows = Collections.synchronizedMap(new WeakHashMap<ScriptInstance, Integer>());
 
-    // Cache for result rows so they don't have to be created
-    // for every row fetch
-    // private static HashMap rowCache = new HashMap(20);
-    // private static HashMap arrayRowCache = new HashMap(20);
-    private static HashMap<Connection, Statement> statementCache = new HashMap<Connection, Statement>(20);
+    // Number of fetched rows in the previous SQL query of any script
+    private static volatile int lastFetchedRows;
+
+    // Default fetch size for streaming queries
+    private static final int STREAM_FETCH_SIZE = 1000;
+
+    // Default number of queries dbQueryAll() runs at the same time
+    private static final int DEFAULT_PARALLELISM = 8;
 
     public boolean scriptUnloaded(ScriptInstance s)
     {
@@ -61,10 +67,17 @@ public class JDBC implements Loadable
 
         // Connection
         env.put("&dbConnect",               new JDBC.dbConnect());
+        env.put("&dbPool",                  new JDBC.dbPool());
+        env.put("&dbConnectRouted",         new JDBC.dbConnectRouted());
         env.put("&dbClose",                 new JDBC.dbClose());
 
         // Operations
         env.put("&dbQuery",                 new JDBC.dbQuery());
+        env.put("&dbQueryStream",           new JDBC.dbQueryStream());
+        env.put("&dbQueryMulti",            new JDBC.dbQueryMulti());
+        env.put("&dbNextResult",            new JDBC.dbNextResult());
+        env.put("&dbPaginate",              new JDBC.dbPaginate());
+        env.put("&dbPageKey",               new JDBC.dbPageKey());
         env.put("&dbUpdate",                new JDBC.dbUpdate());
 
         // Retrieval
@@ -74,15 +87,64 @@ public class JDBC implements Loadable
         env.put("&dbAssignArray",           new JDBC.dbAssignArray());
         env.put("&dbFetchBuffered",         new JDBC.dbFetchBuffered());
         env.put("&dbFetchBufferedArray",    new JDBC.dbFetchBufferedArray());
+        env.put("&dbFetchChunk",            new JDBC.dbFetchChunk());
+        env.put("&dbFetchColumns",          new JDBC.dbFetchColumns());
 
         // Prepared statements
         env.put("&dbPrepare",               new JDBC.dbPrepare());
         env.put("&dbSet",                   new JDBC.dbSet());
         env.put("&dbExec",                  new JDBC.dbExecute());
         env.put("&dbExecute",               new JDBC.dbExecute());
+        env.put("&dbClosePrepared",         new JDBC.dbClosePrepared());
+        env.put("&dbPrepareCache",          new JDBC.dbPrepareCache());
+        env.put("&dbPrepareCacheStats",     new JDBC.dbPrepareCacheStats());
+
+        // Batches
+        env.put("&dbAddBatch",              new JDBC.dbAddBatch());
+        env.put("&dbExecuteBatch",          new JDBC.dbExecuteBatch());
+        env.put("&dbBatchSize",             new JDBC.dbBatchSize());
+
+        // Transactions
+        env.put("&dbBegin",                 new JDBC.dbBegin());
+        env.put("&dbCommit",                new JDBC.dbCommit());
+        env.put("&dbRollback",              new JDBC.dbRollback());
+        env.put("&dbSavepoint",             new JDBC.dbSavepoint());
+        env.put("&dbReleaseSavepoint",      new JDBC.dbReleaseSavepoint());
+        env.put("&dbIsolation",             new JDBC.dbIsolation());
+        env.put("&dbCommitGroup",           new JDBC.dbCommitGroup());
+
+        // Timeouts
+        env.put("&dbTimeout",               new JDBC.dbTimeout());
+        env.put("&dbCancel",                new JDBC.dbCancel());
+
+        // Asynchronous operations
+        env.put("&dbQueryAsync",            new JDBC.dbQueryAsync());
+        env.put("&dbUpdateAsync",           new JDBC.dbUpdateAsync());
+        env.put("&dbExecuteAsync",          new JDBC.dbExecuteAsync());
+        env.put("&dbAwait",                 new JDBC.dbAwait());
+        env.put("&dbAwaitAll",              new JDBC.dbAwaitAll());
+        env.put("&dbQueryAll",              new JDBC.dbQueryAll());
+
+        // Result cache
+        env.put("&dbCachedQuery",           new JDBC.dbCachedQuery());
+        env.put("&dbCacheInvalidate",       new JDBC.dbCacheInvalidate());
+        env.put("&dbCacheSize",             new JDBC.dbCacheSize());
+        env.put("&dbCacheStats",            new JDBC.dbCacheStats());
+
+        // Large objects
+        env.put("&dbBlobStream",            new JDBC.dbBlobStream());
+        env.put("&dbBlobRead",              new JDBC.dbBlobRead());
+        env.put("&dbBlobLength",            new JDBC.dbBlobLength());
+
+        // Bulk transfer
+        env.put("&dbLoadFile",              new JDBC.dbLoadFile());
+        env.put("&dbExport",                new JDBC.dbExport());
 
         // Utilities
         env.put("&dbFetchedRows",           new JDBC.dbFetchedRows());
+        env.put("&dbStats",                 new JDBC.dbStats());
+        env.put("&dbRouteStats",            new JDBC.dbRouteStats());
+        env.put("&dbSlowQueryLog",          new JDBC.dbSlowQueryLog());
 
         return true;
     }
@@ -132,6 +194,116 @@ public class JDBC implements Loadable
         }
     }
 
+    /**
+     * This function borrows a connection from a pool and returns a handle to it.
+     * The handle works like a dbConnect() handle, but dbClose() returns the
+     * connection to the pool instead of closing it.
+     */
+    private static class dbPool implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = 4207135906151248365L;
+
+        public Scalar evaluate(String n, ScriptInstance i, Stack args)
+        {
+
+            // Fetch parameters
+            String driver = BridgeUtilities.getScalar(args).stringValue();
+            String url = BridgeUtilities.getScalar(args).stringValue();
+            String username = BridgeUtilities.getScalar(args).stringValue();
+            String password = BridgeUtilities.getScalar(args).stringValue();
+            ScalarHash options = args.isEmpty() ? null : BridgeUtilities.getHash(args);
+
+            // Load the driver
+            try {
+                Class.forName(driver);
+            }
+            catch(ClassNotFoundException e) {
+                i.getScriptEnvironment().flagError(e.getMessage());
+                return SleepUtils.getEmptyScalar();
+            }
+
+            // Borrow a connection from the pool
+            try {
+                ConnectionPool pool = ConnectionPool.getPool(driver, url, username, password,
+                        (int)JDBC.getOption(options, "min", 0),
+                        (int)JDBC.getOption(options, "max", 10),
+                        JDBC.getOption(options, "validate", 1) != 0,
+                        JDBC.getOption(options, "idle", 60000),
+                        JDBC.getOption(options, "wait", 30000));
+
+                return SleepUtils.getScalar(pool.borrow());
+            }
+            catch(SQLException e) {
+                i.getScriptEnvironment().flagError(e.getMessage());
+            }
+
+            return SleepUtils.getEmptyScalar();
+        }
+    }
+
+    /**
+     * This function connects to a primary database and its read replicas, and
+     * returns a handle that sends reads to the replicas and everything else to
+     * the primary. See ReplicaRouter.
+     */
+    private static class dbConnectRouted implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = -8520117493621735509L;
+
+        public Scalar evaluate(String n, ScriptInstance i, Stack args)
+        {
+
+            // Fetch parameters
+            String driver = BridgeUtilities.getScalar(args).stringValue();
+            String url = BridgeUtilities.getScalar(args).stringValue();
+            ScalarArray replicas = BridgeUtilities.getArray(args);
+            String username = BridgeUtilities.getScalar(args).stringValue();
+            String password = BridgeUtilities.getScalar(args).stringValue();
+            ScalarHash options = args.isEmpty() ? null : BridgeUtilities.getHash(args);
+
+            String[] replicaUrls = new String[replicas.size()];
+
+            for (int r = 0; r < replicaUrls.length; r++) {
+                replicaUrls[r] = replicas.getAt(r).toString();
+            }
+
+            String balance = JDBC.getOption(options, "balance", "round-robin");
+
+            if (!balance.equals("round-robin") && !balance.equals("least-outstanding")) {
+                i.getScriptEnvironment().flagError("unknown balancing: " + balance);
+                return SleepUtils.getEmptyScalar();
+            }
+
+            // Load the driver
+            try {
+                Class.forName(driver);
+            }
+            catch(ClassNotFoundException e) {
+                i.getScriptEnvironment().flagError(e.getMessage());
+                return SleepUtils.getEmptyScalar();
+            }
+
+            // Connect to the primary and the replicas
+            try {
+                return SleepUtils.getScalar(ReplicaRouter.connect(url, replicaUrls, username, password,
+                        balance.equals("round-robin") ? ReplicaRouter.ROUND_ROBIN : ReplicaRouter.LEAST_OUTSTANDING,
+                        JDBC.getOption(options, "lag", 0),
+                        Math.max(100, JDBC.getOption(options, "check", 5000))));
+            }
+            catch(SQLException e) {
+                i.getScriptEnvironment().flagError(e.getMessage());
+            }
+
+            return SleepUtils.getEmptyScalar();
+        }
+    }
+
     /**
      * This function will attempt to close the connection to a database
      */
@@ -148,6 +320,16 @@ public class JDBC implements Loadable
             Connection con = (Connection)BridgeUtilities.getObject(args);
 
             try {
+                // Commit what is left of grouped commits
+                if (ConnectionState.of(con).isGrouping()) {
+                    ConnectionState.of(con).setCommitGroup(con, 0, 0);
+                }
+
+                // Pooled connections keep their cached statements
+                if (ConnectionPool.unwrap(con) == con) {
+                    ConnectionState.remove(con);
+                }
+
                 con.close();
             }
 
@@ -180,10 +362,13 @@ public class JDBC implements Loadable
             // Get query string
             String query = BridgeUtilities.getScalar(args).stringValue();
 
+            // Optional timeout in milliseconds
+            long timeout = BridgeUtilities.getLong(args, -1);
+
             try {
 
                 // Execute the query and store the resultset
-                return SleepUtils.getScalar(JDBC.query(connection, query));
+                return SleepUtils.getScalar(JDBC.query(connection, query, timeout));
             }
             catch(SQLException e) {
                 inst.getScriptEnvironment().flagError(e.getMessage());
@@ -196,206 +381,195 @@ public class JDBC implements Loadable
 
 
     /**
-     * Executes an update on the database
+     * This function will execute a query in streaming mode, where the driver
+     * hands out rows as they are read instead of buffering the whole result
+     * first. The optional third argument is the driver fetch size.
      */
-    private static class dbUpdate implements Function
+    private static class dbQueryStream implements Function
     {
         /**
-         * 
+         *
          */
-        private static final long serialVersionUID = -3641225601120176753L;
+        private static final long serialVersionUID = -2836154709826373402L;
 
-        public Scalar evaluate(String n, ScriptInstance i, Stack args)
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
         {
-
-            // Reset the number of fetched rows; this field
-            // will not be affected by this operation.
-            JDBC.fetchedRows = 0;
-
-            // Fetch connection argument
+            // Get the connection handle
             Connection connection = (Connection)BridgeUtilities.getObject(args);
 
-            // Fetch update string argument
-            String update = BridgeUtilities.getScalar(args).stringValue();
+            // Get query string and fetch size
+            String query = BridgeUtilities.getScalar(args).stringValue();
+            int fetchSize = BridgeUtilities.getInt(args, 0);
 
             try {
 
-                // Perform the update on the database
-                return SleepUtils.getScalar(JDBC.update(connection, update));
+                // Execute the query and store the resultset
+                return SleepUtils.getScalar(JDBC.streamQuery(connection, query, fetchSize));
             }
             catch(SQLException e) {
-                i.getScriptEnvironment().flagError(e.getMessage());
+                inst.getScriptEnvironment().flagError(e.getMessage());
             }
 
-            // Return default value
-            return SleepUtils.getScalar(0);
+            // Return the resultset
+            return SleepUtils.getEmptyScalar();
         }
     }
 
 
     /**
-     * Fetches the next row in a ResultSet and returns it to the
-     * calling script as a ScalarHash.
+     * Sends several statements to the database in one round trip, and
+     * returns the statement to read their results from with dbNextResult()
      */
-    private static class dbFetch implements Function
+    private static class dbQueryMulti implements Function
     {
         /**
-         * 
+         *
          */
-        private static final long serialVersionUID = 7786205027362380251L;
+        private static final long serialVersionUID = -6690358207119473854L;
 
         public Scalar evaluate(String name, ScriptInstance inst, Stack args)
         {
+            Connection connection = (Connection)BridgeUtilities.getObject(args);
+            String query = BridgeUtilities.getScalar(args).stringValue();
 
-            JDBC.fetchedRows = 0;
-
-            // Declarations
-            ResultSet result = (ResultSet)BridgeUtilities.getObject(args);
-
-
-            // Fetch next row
-            RowScalarHash row = JDBC.getNextRow(result);
-
-            if (row != null) {
-                return SleepUtils.getHashScalar(row);
+            try {
+                return SleepUtils.getScalar(MultiResult.execute(connection, query));
             }
-            else {
-                return SleepUtils.getEmptyScalar();
+            catch(SQLException e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
             }
+
+            return SleepUtils.getEmptyScalar();
         }
     }
 
 
     /**
-     * Fetches an entire ResultSet, buffers it in an array, and
-     * returns it to the calling script as a ScalarArray containing
-     * a bunch of hashes representing rows.
+     * Returns the next result of a statement, as a resultset or an update
+     * count, or an empty scalar when there are no more results
      */
-    private static class dbFetchBuffered implements Function
+    private static class dbNextResult implements Function
     {
-
         /**
-         * 
+         *
          */
-        private static final long serialVersionUID = 6447737885474811855L;
+        private static final long serialVersionUID = 2994815706625713310L;
 
         public Scalar evaluate(String name, ScriptInstance inst, Stack args)
         {
-            // Declarations
-            RowScalarHash row;
-            ResultSet result = (ResultSet)BridgeUtilities.getObject(args);
-            ScalarArray bufferedResult = SleepUtils.getArrayScalar().getArray();
-            JDBC.fetchedRows = 0;
+            Statement stmt = (Statement)BridgeUtilities.getObject(args);
 
-            // Fetch all results and push it onto array
-            while ((row = JDBC.getNextRow(result)) != null) {
-                bufferedResult.push(SleepUtils.getHashScalar((RowScalarHash)row.clone()));
+            try {
+                Object result = MultiResult.next(stmt);
 
-                JDBC.fetchedRows++;
+                if (result != null) {
+                    return JDBC.getResultScalar(result);
+                }
+            }
+            catch(SQLException e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
             }
 
-            // Return the array to the calling script
-            return SleepUtils.getArrayScalar(bufferedResult);
+            return SleepUtils.getEmptyScalar();
         }
-
     }
 
 
     /**
-     * Fetches the next row in a ResultSet and returns it to the
-     * calling script as a ScalarHash.
+     * Returns a resultset that reads a query a page at a time, starting each
+     * page after the key of the last row read. See KeysetPager.
      */
-    private static class dbFetchArray implements Function
+    private static class dbPaginate implements Function
     {
         /**
-         * 
+         *
          */
-        private static final long serialVersionUID = -142632406553795689L;
+        private static final long serialVersionUID = 6126358130874401269L;
 
         public Scalar evaluate(String name, ScriptInstance inst, Stack args)
         {
-            JDBC.fetchedRows = 0;
-
             // Declarations
-            ResultSet result = (ResultSet)BridgeUtilities.getObject(args);
-
-
-            // Fetch next row
-            ScalarArray row = JDBC.getNextRowAsArray(result);
+            Connection connection = (Connection)BridgeUtilities.getObject(args);
+            String query = BridgeUtilities.getScalar(args).stringValue();
+            String key = BridgeUtilities.getScalar(args).stringValue();
+            int pageSize = BridgeUtilities.getInt(args, 1000);
+            Object startKey = args.isEmpty() ? null : BridgeUtilities.getObject(args);
 
-            if (row != null) {
-                return SleepUtils.getArrayScalar(row);
+            try {
+                return SleepUtils.getScalar(KeysetPager.open(connection, query, key, pageSize, startKey));
             }
-            else {
-                return SleepUtils.getEmptyScalar();
+            catch(SQLException e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
             }
+
+            return SleepUtils.getEmptyScalar();
         }
     }
 
+
     /**
-     * Fetches an entire ResultSet, buffers it in an array, and
-     * returns it to the calling script as a ScalarArray containing
-     * a bunch of hashes representing rows.
+     * Returns the key of the last row read from a dbPaginate() resultset
      */
-    private static class dbFetchBufferedArray implements Function
+    private static class dbPageKey implements Function
     {
-
         /**
-         * 
+         *
          */
-        private static final long serialVersionUID = -8954205487071612742L;
+        private static final long serialVersionUID = -1186360052218519410L;
 
         public Scalar evaluate(String name, ScriptInstance inst, Stack args)
         {
-            // Declarations
-            ScalarArray row;
             ResultSet result = (ResultSet)BridgeUtilities.getObject(args);
-            ScalarArray bufferedResult = SleepUtils.getArrayScalar().getArray();
-            JDBC.fetchedRows = 0;
 
-            // Fetch all results and push it onto array
-            while ((row = JDBC.getNextRowAsArray(result)) != null) {
-                bufferedResult.push(SleepUtils.getArrayScalar(row));
-                JDBC.fetchedRows++;
+            try {
+                return SleepUtils.getScalar(KeysetPager.getLastKey(result));
+            }
+            catch(SQLException e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
             }
 
-            // Return the array to the calling script
-            return SleepUtils.getArrayScalar(bufferedResult);
+            return SleepUtils.getEmptyScalar();
         }
-
     }
 
 
     /**
-     * Fetches the next row in a ResultSet and puts it into the
-     * second argument. This function also returns the row.
+     * Executes an update on the database
      */
-    private static class dbAssign implements Function
+    private static class dbUpdate implements Function
     {
         /**
          * 
          */
-        private static final long serialVersionUID = 5042274872632142933L;
+        private static final long serialVersionUID = -3641225601120176753L;
 
-        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        public Scalar evaluate(String n, ScriptInstance i, Stack args)
         {
-            JDBC.fetchedRows = 0;
 
-            // Declarations
-            ResultSet result = (ResultSet)BridgeUtilities.getObject(args);
-            Scalar opt = BridgeUtilities.getScalar(args);
+            // Reset the number of fetched rows; this field
+            // will not be affected by this operation.
+            JDBC.setFetchedRows(i, 0);
 
-            // Fetch next row
-            RowScalarHash row = JDBC.getNextRow(result);
+            // Fetch connection argument
+            Connection connection = (Connection)BridgeUtilities.getObject(args);
 
-            if (row != null) {
-                opt.setValue(SleepUtils.getHashScalar(row));
-                return SleepUtils.getHashScalar(row);
+            // Fetch update string argument
+            String update = BridgeUtilities.getScalar(args).stringValue();
+
+            // Optional timeout in milliseconds
+            long timeout = BridgeUtilities.getLong(args, -1);
+
+            try {
+
+                // Perform the update on the database
+                return SleepUtils.getScalar(JDBC.update(connection, update, timeout));
             }
-            else {
-                opt.setValue(SleepUtils.getEmptyScalar());
-                return SleepUtils.getEmptyScalar();
+            catch(SQLException e) {
+                i.getScriptEnvironment().flagError(e.getMessage());
             }
+
+            // Return default value
+            return SleepUtils.getScalar(0);
         }
     }
 
@@ -404,31 +578,29 @@ public class JDBC implements Loadable
      * Fetches the next row in a ResultSet and returns it to the
      * calling script as a ScalarHash.
      */
-    private static class dbAssignArray implements Function
+    private static class dbFetch implements Function
     {
         /**
          * 
          */
-        private static final long serialVersionUID = 666751977825529741L;
+        private static final long serialVersionUID = 7786205027362380251L;
 
         public Scalar evaluate(String name, ScriptInstance inst, Stack args)
         {
-            JDBC.fetchedRows = 0;
+
+            JDBC.setFetchedRows(inst, 0);
 
             // Declarations
             ResultSet result = (ResultSet)BridgeUtilities.getObject(args);
-            Scalar opt = BridgeUtilities.getScalar(args);
 
 
             // Fetch next row
-            ScalarArray row = JDBC.getNextRowAsArray(result);
+            RowScalarHash row = JDBC.getNextRow(inst, result);
 
             if (row != null) {
-                opt.setValue(SleepUtils.getArrayScalar(row));
-                return SleepUtils.getArrayScalar(row);
+                return SleepUtils.getHashScalar(row);
             }
             else {
-                opt.setValue(SleepUtils.getEmptyScalar());
                 return SleepUtils.getEmptyScalar();
             }
         }
@@ -436,379 +608,2876 @@ public class JDBC implements Loadable
 
 
     /**
-     * Returns the number of fetched rows in the previous query
+     * Fetches an entire ResultSet, buffers it in an array, and
+     * returns it to the calling script as a ScalarArray containing
+     * a bunch of hashes representing rows.
      */
-    private static class dbFetchedRows implements Function
+    private static class dbFetchBuffered implements Function
     {
+
         /**
          * 
          */
-        private static final long serialVersionUID = -3923959881422396953L;
+        private static final long serialVersionUID = 6447737885474811855L;
 
         public Scalar evaluate(String name, ScriptInstance inst, Stack args)
         {
-            return SleepUtils.getScalar(JDBC.getFetchedRows());
-        }
-    }
+            // Declarations
+            RowScalarHash row;
+            ResultSet result = (ResultSet)BridgeUtilities.getObject(args);
+            boolean columnar = !args.isEmpty() && SleepUtils.isTrueScalar(BridgeUtilities.getScalar(args));
+            long memory = BridgeUtilities.getLong(args, -1);
+            ResultState state = JDBC.getState(result);
+            ScalarArray bufferedResult = SleepUtils.getArrayScalar().getArray();
+            int count = 0;
 
+            // Spill the rows over the memory budget to disk
+            if (memory >= 0) {
+                return JDBC.getSpilledRows(inst, result, state, false, memory);
+            }
 
-    /**
-     * Creates a prepared statement
-     * 
-     * @author Andreas
+            // Keep the rows in column storage
+            if (columnar) {
+                return JDBC.getColumnarRows(inst, result, state, false);
+            }
+
+            // Fetch all results and push it onto array
+            while ((row = JDBC.getNextRow(result, state)) != null) {
+                bufferedResult.push(SleepUtils.getHashScalar(row));
+                count++;
+            }
+
+            JDBC.setFetchedRows(inst, count);
+
+            // Return the array to the calling script
+            return SleepUtils.getArrayScalar(bufferedResult);
+        }
+
+    }
+
+
+    /**
+     * Fetches up to N rows from a ResultSet and returns them to the
+     * calling script as a ScalarArray of hashes. Returns an empty
+     * scalar when there are no more rows.
+     */
+    private static class dbFetchChunk implements Function
+    {
+
+        /**
+         *
+         */
+        private static final long serialVersionUID = 3920641388734195614L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            // Declarations
+            RowScalarHash row;
+            ResultSet result = (ResultSet)BridgeUtilities.getObject(args);
+            int size = BridgeUtilities.getInt(args, 1000);
+            ResultState state = JDBC.getState(result);
+            ScalarArray chunk = SleepUtils.getArrayScalar().getArray();
+
+            // Let the driver fetch the whole chunk in one round trip
+            JDBC.setFetchSizeHint(result, size);
+
+            // Fetch rows until the chunk is full
+            while (chunk.size() < size && (row = JDBC.getNextRow(result, state)) != null) {
+                chunk.push(SleepUtils.getHashScalar(row));
+            }
+
+            if (chunk.size() == 0) {
+                return SleepUtils.getEmptyScalar();
+            }
+
+            return SleepUtils.getArrayScalar(chunk);
+        }
+
+    }
+
+
+    /**
+     * Fetches a ResultSet column by column, up to an optional number of
+     * rows, and returns it to the calling script as a hash of arrays.
+     * Numeric and boolean columns are read with the typed getters into
+     * primitive arrays, see ColumnVector.
+     */
+    private static class dbFetchColumns implements Function
+    {
+
+        /**
+         *
+         */
+        private static final long serialVersionUID = -4387126090178245523L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            // Declarations
+            ResultSet result = (ResultSet)BridgeUtilities.getObject(args);
+            int maxRows = BridgeUtilities.getInt(args, Integer.MAX_VALUE);
+            ResultState state = JDBC.getState(result);
+            int count = 0;
+
+            // The resultset has already been read to the end
+            if (state == null) {
+                JDBC.setFetchedRows(inst, 0);
+                return SleepUtils.getEmptyScalar();
+            }
+
+            ColumnSchema schema = state.getSchema();
+            ColumnVector[] columns = new ColumnVector[schema.count];
+
+            if (maxRows != Integer.MAX_VALUE) {
+                JDBC.setFetchSizeHint(result, maxRows);
+            }
+
+            try {
+                count = JDBC.readColumns(result, state, columns, maxRows, false);
+            }
+            catch(SQLException e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
+                return SleepUtils.getEmptyScalar();
+            }
+
+            JDBC.setFetchedRows(inst, count);
+
+            if (count == 0) {
+                return SleepUtils.getEmptyScalar();
+            }
+
+            // Every column is an array over its values
+            Scalar table = SleepUtils.getHashScalar();
+
+            for (int i = 0; i < schema.count; i++) {
+
+                // The first column wins if two columns share a label
+                if (schema.indexOf(schema.labels[i]) == i) {
+                    JDBC.put(table.getHash(), schema.labels[i], SleepUtils.getArrayScalar(columns[i]));
+                }
+            }
+
+            return table;
+        }
+
+    }
+
+
+    /**
+     * Fetches the next row in a ResultSet and returns it to the
+     * calling script as a ScalarHash.
+     */
+    private static class dbFetchArray implements Function
+    {
+        /**
+         * 
+         */
+        private static final long serialVersionUID = -142632406553795689L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            JDBC.setFetchedRows(inst, 0);
+
+            // Declarations
+            ResultSet result = (ResultSet)BridgeUtilities.getObject(args);
+
+
+            // Fetch next row
+            ScalarArray row = JDBC.getNextRowAsArray(result);
+
+            if (row != null) {
+                return SleepUtils.getArrayScalar(row);
+            }
+            else {
+                return SleepUtils.getEmptyScalar();
+            }
+        }
+    }
+
+    /**
+     * Fetches an entire ResultSet, buffers it in an array, and
+     * returns it to the calling script as a ScalarArray containing
+     * a bunch of hashes representing rows.
+     */
+    private static class dbFetchBufferedArray implements Function
+    {
+
+        /**
+         * 
+         */
+        private static final long serialVersionUID = -8954205487071612742L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            // Declarations
+            ScalarArray row;
+            ResultSet result = (ResultSet)BridgeUtilities.getObject(args);
+            boolean columnar = !args.isEmpty() && SleepUtils.isTrueScalar(BridgeUtilities.getScalar(args));
+            long memory = BridgeUtilities.getLong(args, -1);
+            ResultState state = JDBC.getState(result);
+            ScalarArray bufferedResult = SleepUtils.getArrayScalar().getArray();
+            int count = 0;
+
+            // Spill the rows over the memory budget to disk
+            if (memory >= 0) {
+                return JDBC.getSpilledRows(inst, result, state, true, memory);
+            }
+
+            // Keep the rows in column storage
+            if (columnar) {
+                return JDBC.getColumnarRows(inst, result, state, true);
+            }
+
+            // Fetch all results and push it onto array
+            while ((row = JDBC.getNextRowAsArray(result, state)) != null) {
+                bufferedResult.push(SleepUtils.getArrayScalar(row));
+                count++;
+            }
+
+            JDBC.setFetchedRows(inst, count);
+
+            // Return the array to the calling script
+            return SleepUtils.getArrayScalar(bufferedResult);
+        }
+
+    }
+
+
+    /**
+     * Fetches the next row in a ResultSet and puts it into the
+     * second argument. This function also returns the row.
      *
+     * With a true third argument, a row from the same ResultSet that is
+     * already in the second argument is filled with the next values in
+     * place, and a shared true value is returned instead of the row.
      */
-    private static class dbPrepare implements Function
+    private static class dbAssign implements Function
     {
+        /**
+         * 
+         */
+        private static final long serialVersionUID = 5042274872632142933L;
+
+        // Returned when a row is reused, it is never changed
+        private static final Scalar REUSED = SleepUtils.getScalar(true);
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            JDBC.setFetchedRows(inst, 0);
+
+            // Declarations
+            ResultSet result = (ResultSet)BridgeUtilities.getObject(args);
+            Scalar opt = BridgeUtilities.getScalar(args);
+            boolean reuse = !args.isEmpty() && SleepUtils.isTrueScalar(BridgeUtilities.getScalar(args));
 
+            // Fill the row from the previous call, if it is one of ours
+            if (reuse && opt.getHash() instanceof RowScalarHash) {
+                ResultState state = JDBC.getState(result);
+                RowScalarHash previous = (RowScalarHash)opt.getHash();
+
+                if (state != null && previous.schema == state.getSchema()) {
+                    if (JDBC.getNextRow(result, state, previous, inst) != null) {
+                        return REUSED;
+                    }
+
+                    opt.setValue(SleepUtils.getEmptyScalar());
+                    return SleepUtils.getEmptyScalar();
+                }
+            }
+
+            // Fetch next row
+            RowScalarHash row = JDBC.getNextRow(inst, result);
+
+            if (row != null) {
+                Scalar value = SleepUtils.getHashScalar(row);
+                opt.setValue(value);
+                return value;
+            }
+            else {
+                opt.setValue(SleepUtils.getEmptyScalar());
+                return SleepUtils.getEmptyScalar();
+            }
+        }
+    }
+
+
+    /**
+     * Fetches the next row in a ResultSet and returns it to the
+     * calling script as a ScalarHash.
+     */
+    private static class dbAssignArray implements Function
+    {
         /**
          * 
          */
-        private static final long serialVersionUID = 1687493511177917567L;
+        private static final long serialVersionUID = 666751977825529741L;
 
-        /* (non-Javadoc)
-         * @see sleep.interfaces.Function#evaluate(java.lang.String, sleep.runtime.ScriptInstance, java.util.Stack)
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            JDBC.setFetchedRows(inst, 0);
+
+            // Declarations
+            ResultSet result = (ResultSet)BridgeUtilities.getObject(args);
+            Scalar opt = BridgeUtilities.getScalar(args);
+
+
+            // Fetch next row
+            ScalarArray row = JDBC.getNextRowAsArray(result);
+
+            if (row != null) {
+                opt.setValue(SleepUtils.getArrayScalar(row));
+                return SleepUtils.getArrayScalar(row);
+            }
+            else {
+                opt.setValue(SleepUtils.getEmptyScalar());
+                return SleepUtils.getEmptyScalar();
+            }
+        }
+    }
+
+
+    /**
+     * Returns query statistics as a hash: the totals, or those of a single
+     * connection if a handle is given. The totals also include the statistics
+     * per SQL shape under the key "shapes".
+     */
+    private static class dbStats implements Function
+    {
+        /**
+         *
          */
-        public Scalar evaluate(String name, ScriptInstance instance, Stack args) {
+        private static final long serialVersionUID = -6126493027591843102L;
 
-            /* Check number of arguments */
-            if (args.size() < 2) {
-                instance.getScriptEnvironment().flagError("Not enough arguments");
-                return null;
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            if (args.size() > 0) {
+                Connection connection = (Connection)BridgeUtilities.getObject(args);
+                return JDBC.getStats(ConnectionState.of(connection).stats);
             }
-            
-            /* Declare prepared statement */
-            PreparedStatement statement = null;
-            
-            /* Get the connection handle */
+
+            Scalar stats = JDBC.getStats(QueryStats.total);
+            Scalar shapes = SleepUtils.getHashScalar();
+
+            for (Map.Entry<String, QueryStats.Counter> entry : QueryStats.getShapes().entrySet()) {
+                JDBC.put(shapes.getHash(), entry.getKey(), JDBC.getStats(entry.getValue()));
+            }
+
+            JDBC.put(stats.getHash(), "shapes", shapes);
+
+            if (QueryStats.getJmxError() != null) {
+                JDBC.put(stats.getHash(), "jmxError", SleepUtils.getScalar(QueryStats.getJmxError()));
+            }
+
+            return stats;
+        }
+    }
+
+
+    /**
+     * Returns the replicas of a routed handle as a hash keyed by url, with
+     * whether each is healthy, its lag, and its statements running and in
+     * total.
+     */
+    private static class dbRouteStats implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = 3390817725196044652L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
             Connection connection = (Connection)BridgeUtilities.getObject(args);
-            
-            /* Get the query */
-            String query = BridgeUtilities.getScalar(args).stringValue();
-            
-            /* Create a prepared statement */
-            try {
-                statement = connection.prepareStatement(query);
-            
-                if (args.size() > 0) {
-                    /* User decided to set values at once */
-                    
+            ReplicaRouter router = ReplicaRouter.of(connection);
+            Scalar stats = SleepUtils.getHashScalar();
+
+            if (router == null) {
+                inst.getScriptEnvironment().flagError("not a routed connection");
+                return SleepUtils.getEmptyScalar();
+            }
+
+            ReplicaRouter.Replica[] replicas = router.getReplicas();
+
+            for (int i = 0; i < replicas.length; i++) {
+                Scalar replica = SleepUtils.getHashScalar();
+                JDBC.put(replica.getHash(), "healthy", SleepUtils.getScalar(replicas[i].healthy ? 1 : 0));
+                JDBC.put(replica.getHash(), "lag", SleepUtils.getScalar(replicas[i].lag));
+                JDBC.put(replica.getHash(), "outstanding", SleepUtils.getScalar(replicas[i].outstanding.get()));
+                JDBC.put(replica.getHash(), "statements", SleepUtils.getScalar(replicas[i].statements.get()));
+                JDBC.put(stats.getHash(), replicas[i].url, replica);
+            }
+
+            return stats;
+        }
+    }
+
+
+    /**
+     * Logs queries slower than the given number of milliseconds, to the
+     * given file or to standard error. A negative threshold turns it off.
+     */
+    private static class dbSlowQueryLog implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = 5307761393124640982L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            long threshold = BridgeUtilities.getLong(args, -1);
+            String path = BridgeUtilities.getString(args, "");
+
+            try {
+                PrintStream log = path.equals("") ? null : new PrintStream(new FileOutputStream(path, true), true);
+                QueryStats.setSlowLog(threshold, log);
+            }
+            catch(IOException e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
+            }
+
+            return SleepUtils.getEmptyScalar();
+        }
+    }
+
+
+    /**
+     * Returns the number of fetched rows in the previous query
+     */
+    private static class dbFetchedRows implements Function
+    {
+        /**
+         * 
+         */
+        private static final long serialVersionUID = -3923959881422396953L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            // Rows fetched from a particular resultset
+            if (args.size() > 0) {
+                ResultState state = ResultState.get((ResultSet)BridgeUtilities.getObject(args));
+                return SleepUtils.getScalar((state == null) ? 0L : state.rows);
+            }
+
+            return SleepUtils.getScalar(JDBC.getFetchedRows(inst));
+        }
+    }
+
+
+    /**
+     * Creates a prepared statement
+     * 
+     * @author Andreas
+     *
+     */
+    private static class dbPrepare implements Function
+    {
+
+        /**
+         * 
+         */
+        private static final long serialVersionUID = 1687493511177917567L;
+
+        /* (non-Javadoc)
+         * @see sleep.interfaces.Function#evaluate(java.lang.String, sleep.runtime.ScriptInstance, java.util.Stack)
+         */
+        public Scalar evaluate(String name, ScriptInstance instance, Stack args) {
+
+            /* Check number of arguments */
+            if (args.size() < 2) {
+                instance.getScriptEnvironment().flagError("Not enough arguments");
+                return null;
+            }
+            
+            /* Declare prepared statement */
+            PreparedStatement statement = null;
+            
+            /* Get the connection handle */
+            Connection connection = (Connection)BridgeUtilities.getObject(args);
+            
+            /* Get the query */
+            String query = BridgeUtilities.getScalar(args).stringValue();
+            
+            /* Create a prepared statement, or reuse a cached one, routed every time it is executed for reads on a routed handle */
+            try {
+                statement = ReplicaRouter.prepare(connection, query);
+                QueryStats.prepared(statement, query);
+            
+                if (args.size() > 0) {
+                    /* User decided to set values at once */
+                    
                     int size = args.size();
                     
+                    ParameterBinder binder = ParameterBinder.of(statement);
+
                     for(int i = 0; i < size; i++) {
                         
                         /* Get argument from stack */
-                        Object arg = BridgeUtilities.getObject(args);
+                        Scalar arg = BridgeUtilities.getScalar(args);
                         
-                        /* Set value in prepared statement */
-                        statement.setObject(i + 1, arg);
+                        /* Set value in prepared statement, with the setter of its type */
+                        binder.bind(statement, i + 1, arg);
+                    }
+                }
+            } 
+
+            catch(Exception e) {
+                instance.getScriptEnvironment().flagError(e.getMessage());
+                return null;
+            }
+            
+            return SleepUtils.getScalar(statement);
+        }
+        
+    }
+    
+    
+    /**
+     * Set a value in a prepared statement
+     * 
+     * @author Andreas
+     *
+     */
+    private static class dbSet implements Function
+    {
+        /**
+         * 
+         */
+        private static final long serialVersionUID = 7883375884590149183L;
+
+        /* (non-Javadoc)
+         * @see sleep.interfaces.Function#evaluate(java.lang.String, sleep.runtime.ScriptInstance, java.util.Stack)
+         */
+        public Scalar evaluate(String name, ScriptInstance instance, Stack args) {
+
+            /* Check number of arguments */
+            if (args.size() < 3) {
+                instance.getScriptEnvironment().flagError("Not enough arguments");
+                return null;
+            }
+            
+            /* Get arguments */
+            PreparedStatement stmt = (PreparedStatement)BridgeUtilities.getObject(args);
+            int index = BridgeUtilities.getInt(args);
+            Scalar value = BridgeUtilities.getScalar(args);
+
+            /* Set value */
+            try {
+
+                /* Check for user-specified type */
+                if (args.size() > 0) {
+                    stmt.setObject(index, value.objectValue(), BridgeUtilities.getInt(args));
+                }
+                else {
+                    ParameterBinder.of(stmt).bind(stmt, index, value);
+                }
+            } 
+            catch(Exception e) {
+                instance.getScriptEnvironment().flagError(e.getMessage());
+                return SleepUtils.getScalar(false);
+            }
+            return SleepUtils.getScalar(true);
+        }
+    }
+    
+    /**
+     * Set a value in a prepared statement
+     * 
+     * @author Andreas
+     *
+     */
+    private static class dbExecute implements Function
+    {
+
+        /**
+         * 
+         */
+        private static final long serialVersionUID = 8088754343975056604L;
+
+        /* (non-Javadoc)
+         * @see sleep.interfaces.Function#evaluate(java.lang.String, sleep.runtime.ScriptInstance, java.util.Stack)
+         */
+        public Scalar evaluate(String name, ScriptInstance instance, Stack args) {
+            
+            /* Check number of arguments */
+            if (args.size() < 1) {
+                instance.getScriptEnvironment().flagError("Not enough arguments");
+                return null;
+            }
+            
+            /* Get arguments */
+            PreparedStatement stmt = (PreparedStatement)BridgeUtilities.getObject(args);
+            long timeout = BridgeUtilities.getLong(args, -1);
+            
+            try {
+                return JDBC.getResultScalar(JDBC.execute(stmt, timeout));
+            } 
+            catch(Exception e) {
+                instance.getScriptEnvironment().flagError(e.getMessage());
+                return SleepUtils.getScalar(false);                
+            }
+        }
+    } 
+
+
+    /**
+     * Closes a prepared statement handle. The statement goes back to the
+     * cache of its connection, for a later dbPrepare() of the same query.
+     */
+    private static class dbClosePrepared implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = -3094187426601850251L;
+
+        public Scalar evaluate(String name, ScriptInstance instance, Stack args) {
+
+            PreparedStatement stmt = (PreparedStatement)BridgeUtilities.getObject(args);
+
+            try {
+                stmt.close();
+            }
+            catch(SQLException e) {
+                instance.getScriptEnvironment().flagError(e.getMessage());
+            }
+
+            return SleepUtils.getEmptyScalar();
+        }
+    }
+
+
+    /**
+     * Performs a query in the background and returns a future for the
+     * resultset right away. Use dbAwait() to get the resultset.
+     */
+    private static class dbQueryAsync implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = -4650928573826409174L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            final Connection connection = (Connection)BridgeUtilities.getObject(args);
+            final String query = BridgeUtilities.getScalar(args).stringValue();
+
+            return SleepUtils.getScalar(AsyncExecutor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    ConnectionState state = ConnectionState.of(connection);
+                    state.lock();
+
+                    try {
+                        return JDBC.query(connection, query);
+                    }
+                    finally {
+                        state.unlock();
+                    }
+                }
+            }));
+        }
+    }
+
+
+    /**
+     * Performs an update in the background and returns a future for the
+     * number of affected rows right away.
+     */
+    private static class dbUpdateAsync implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = 2794315076264503389L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            final Connection connection = (Connection)BridgeUtilities.getObject(args);
+            final String update = BridgeUtilities.getScalar(args).stringValue();
+
+            return SleepUtils.getScalar(AsyncExecutor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    ConnectionState state = ConnectionState.of(connection);
+                    state.lock();
+
+                    try {
+                        return Integer.valueOf(JDBC.update(connection, update));
+                    }
+                    finally {
+                        state.unlock();
+                    }
+                }
+            }));
+        }
+    }
+
+
+    /**
+     * Executes a prepared statement in the background and returns a future
+     * for the resultset or update count right away.
+     */
+    private static class dbExecuteAsync implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = 7403386229960138258L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            final PreparedStatement stmt = (PreparedStatement)BridgeUtilities.getObject(args);
+
+            return SleepUtils.getScalar(AsyncExecutor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    ConnectionState state = ConnectionState.of(stmt.getConnection());
+                    state.lock();
+
+                    try {
+                        return JDBC.execute(stmt);
+                    }
+                    finally {
+                        state.unlock();
                     }
                 }
-            } 
+            }));
+        }
+    }
+
+
+    /**
+     * Waits for a future from one of the asynchronous functions and returns
+     * its result. An optional timeout is given in milliseconds.
+     */
+    private static class dbAwait implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = -1130950652339851377L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            Future future = (Future)BridgeUtilities.getObject(args);
+            long timeout = BridgeUtilities.getLong(args, 0);
+
+            return JDBC.await(inst, future, timeout);
+        }
+    }
+
+
+    /**
+     * Waits for an array of futures and returns an array of their results,
+     * in the same order. An optional timeout is given in milliseconds, and
+     * applies to all the futures together.
+     */
+    private static class dbAwaitAll implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = 8217330958446031852L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            Iterator futures = BridgeUtilities.getArray(args).scalarIterator();
+            long timeout = BridgeUtilities.getLong(args, 0);
+            long deadline = System.currentTimeMillis() + timeout;
+            ScalarArray results = SleepUtils.getArrayScalar().getArray();
+
+            while (futures.hasNext()) {
+                Future future = (Future)((Scalar)futures.next()).objectValue();
+                long left = (timeout > 0) ? Math.max(1, deadline - System.currentTimeMillis()) : 0;
+
+                results.push(JDBC.await(inst, future, left));
+            }
+
+            return SleepUtils.getArrayScalar(results);
+        }
+    }
+
+
+    /**
+     * Adds a row to the batch of a prepared statement, optionally setting
+     * its values first. Given a connection handle, adds an SQL update to
+     * the batch of the connection instead.
+     */
+    private static class dbAddBatch implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = 1318876497046413630L;
+
+        public Scalar evaluate(String name, ScriptInstance instance, Stack args) {
+
+            /* Check number of arguments */
+            if (args.size() < 1) {
+                instance.getScriptEnvironment().flagError("Not enough arguments");
+                return SleepUtils.getScalar(false);
+            }
+
+            Object target = BridgeUtilities.getObject(args);
+
+            try {
+                if (target instanceof Connection) {
+                    /* Raw SQL update for the connection batch */
+                    String update = BridgeUtilities.getScalar(args).stringValue();
+                    Statement stmt = ConnectionState.of((Connection)target).getBatchStatement();
+                    Batch.of(stmt).add(stmt, update);
+                }
+                else {
+                    /* Set the given values, if any, and add them to the batch */
+                    PreparedStatement stmt = (PreparedStatement)target;
+                    ParameterBinder binder = ParameterBinder.of(stmt);
+                    int size = args.size();
+
+                    for (int i = 0; i < size; i++) {
+                        binder.bind(stmt, i + 1, BridgeUtilities.getScalar(args));
+                    }
+
+                    Batch.of(stmt).add(stmt);
+                }
+            }
+            catch(Exception e) {
+                instance.getScriptEnvironment().flagError(e.getMessage());
+                return SleepUtils.getScalar(false);
+            }
+
+            return SleepUtils.getScalar(true);
+        }
+    }
+
+
+    /**
+     * Executes the batch of a prepared statement or a connection, and returns
+     * the update counts of every row added since the last execute. An array of
+     * rows, each an array of values, can be given to add them to the batch
+     * first.
+     */
+    private static class dbExecuteBatch implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = -7395206148133216839L;
+
+        public Scalar evaluate(String name, ScriptInstance instance, Stack args) {
+
+            /* Check number of arguments */
+            if (args.size() < 1) {
+                instance.getScriptEnvironment().flagError("Not enough arguments");
+                return SleepUtils.getEmptyScalar();
+            }
+
+            Object target = BridgeUtilities.getObject(args);
+            Statement stmt = null;
+
+            try {
+                if (target instanceof Connection) {
+                    stmt = ConnectionState.of((Connection)target).takeBatchStatement();
+
+                    if (stmt == null) {
+                        /* Nothing has been added */
+                        return SleepUtils.getArrayScalar();
+                    }
+                }
+                else {
+                    stmt = (PreparedStatement)target;
+
+                    /* Add the given rows to the batch */
+                    if (args.size() > 0) {
+                        Iterator rows = BridgeUtilities.getArray(args).scalarIterator();
+                        Batch batch = Batch.of(stmt);
+
+                        while (rows.hasNext()) {
+                            Scalar row = (Scalar)rows.next();
+
+                            if (row.getArray() != null) {
+                                JDBC.setParameters((PreparedStatement)stmt, row.getArray());
+                            }
+                            else {
+                                ParameterBinder.of((PreparedStatement)stmt).bind((PreparedStatement)stmt, 1, row);
+                            }
+
+                            batch.add((PreparedStatement)stmt);
+                        }
+                    }
+                }
+
+                int[] counts = Batch.of(stmt).execute(stmt);
+                ConnectionState.of(stmt.getConnection()).updated(stmt.getConnection());
+
+                return JDBC.getUpdateCounts(counts);
+            }
+            catch(BatchUpdateException e) {
+                instance.getScriptEnvironment().flagError(e.getMessage());
+                return JDBC.getUpdateCounts(e.getUpdateCounts());
+            }
+            catch(Exception e) {
+                instance.getScriptEnvironment().flagError(e.getMessage());
+                return SleepUtils.getEmptyScalar();
+            }
+            finally {
+                if (stmt != null) {
+                    JDBC.releaseStatement(stmt);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Sets the number of rows a batch collects before it is sent to the
+     * database. A size of 0 sends the whole batch when it is executed.
+     */
+    private static class dbBatchSize implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = 6520841937624133805L;
+
+        public Scalar evaluate(String name, ScriptInstance instance, Stack args) {
+
+            Object target = BridgeUtilities.getObject(args);
+            int size = BridgeUtilities.getInt(args, Batch.DEFAULT_FLUSH_SIZE);
+
+            if (target instanceof Connection) {
+                ConnectionState.of((Connection)target).setBatchSize(size);
+            }
+            else {
+                Batch.of((Statement)target).setFlushSize(size);
+            }
+
+            return SleepUtils.getEmptyScalar();
+        }
+    }
+
+
+    /**
+     * Sets the number of prepared statements cached for a connection.
+     * A size of 0 turns the cache off.
+     */
+    private static class dbPrepareCache implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = -5460316227218793391L;
+
+        public Scalar evaluate(String name, ScriptInstance instance, Stack args) {
+
+            /* Get arguments */
+            Connection connection = (Connection)BridgeUtilities.getObject(args);
+            int size = BridgeUtilities.getInt(args, PreparedStatementCache.DEFAULT_CAPACITY);
+
+            ConnectionState.of(connection).prepared.setCapacity(size);
+            return SleepUtils.getEmptyScalar();
+        }
+    }
+
+
+    /**
+     * Returns the prepared statement cache statistics for a connection
+     * as a hash with the keys hits, misses, evictions, size and capacity.
+     */
+    private static class dbPrepareCacheStats implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = 2291809164470431655L;
+
+        public Scalar evaluate(String name, ScriptInstance instance, Stack args) {
+
+            Connection connection = (Connection)BridgeUtilities.getObject(args);
+            PreparedStatementCache cache = ConnectionState.of(connection).prepared;
+
+            Scalar stats = SleepUtils.getHashScalar();
+            JDBC.put(stats.getHash(), "hits", SleepUtils.getScalar(cache.getHits()));
+            JDBC.put(stats.getHash(), "misses", SleepUtils.getScalar(cache.getMisses()));
+            JDBC.put(stats.getHash(), "evictions", SleepUtils.getScalar(cache.getEvictions()));
+            JDBC.put(stats.getHash(), "size", SleepUtils.getScalar(cache.size()));
+            JDBC.put(stats.getHash(), "capacity", SleepUtils.getScalar(cache.getCapacity()));
+
+            return stats;
+        }
+    }
+    
+    
+    /**
+     * This is a generic helper method that fetches the next result from
+     * a resultset, stores it in a RowScalarHash, and returns it. Large
+     * objects are read when the script uses them.
+     */
+    private static RowScalarHash getNextRow(ScriptInstance inst, ResultSet result) {
+        return JDBC.getNextRow(result, JDBC.getState(result), null, inst);
+    }
+
+    /**
+     * Fetches the next row using columns already read from the resultset,
+     * so that the per-row work is only reading the values. The row is
+     * meant to be buffered, so large objects are read right away.
+     */
+    private static RowScalarHash getNextRow(ResultSet result, ResultState state) {
+        return JDBC.getNextRow(result, state, null, null);
+    }
+
+    /**
+     * Fetches the next row into the values of a row from the same resultset,
+     * or into a new row if there is none to reuse. Large objects are read
+     * when the given script uses them, or right away without a script.
+     */
+    private static RowScalarHash getNextRow(ResultSet result, ResultState state, RowScalarHash reuse, ScriptInstance inst) {
+
+        // The resultset has already been read to the end
+        if (state == null) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+
+        try {
+
+            // Check if there are any more rows available in the given result set
+            if (result.next()) {
+
+                // Read the values, the columns are shared with the other rows
+                ColumnSchema schema = state.getSchema();
+
+                if (reuse != null) {
+
+                    // Change the scalars of the row in place, so the script
+                    // sees the new values through the scalars it already has
+                    for (int i = 0; i < schema.count; i++) {
+                        Scalar value = schema.lobs[i] ? LobValue.read(result, state, i + 1, schema.types[i], inst)
+                                                      : SleepUtils.getScalar(result.getObject(i + 1));
+
+                        if (reuse.values[i] == null) {
+                            reuse.values[i] = value;
+                        }
+                        else {
+                            reuse.values[i].setValue(value);
+                        }
+                    }
+
+                    state.rows++;
+                    state.fetchNanos += System.nanoTime() - start;
+
+                    reuse.extra = null;
+                    return reuse;
+                }
+
+                Scalar[] values = new Scalar[schema.count];
+
+                for (int i = 0; i < schema.count; i++) {
+                    if (schema.lobs[i]) {
+                        values[i] = LobValue.read(result, state, i + 1, schema.types[i], inst);
+                    }
+                    else {
+                        values[i] = SleepUtils.getScalar(result.getObject(i + 1));
+                    }
+                }
+
+                state.rows++;
+                state.fetchNanos += System.nanoTime() - start;
+
+                return new RowScalarHash(schema, values);
+
+            }
+            else {
+                JDBC.release(result);
+                return null;
+            }
+        }
+        catch(SQLException e) {
+            throw new RuntimeException("row fetch failed (" + e.getMessage() + ")");
+        }
+    }
+
+
+    /**
+     * Fetches the next row as plain Java values, for keeping outside of Sleep.
+     */
+    private static Object[] getNextRowValues(ResultSet result, ResultState state) {
+
+        // The resultset has already been read to the end
+        if (state == null) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+
+        try {
+
+            // Check if there are any more rows available in the given result set
+            if (result.next()) {
+
+                Object[] values = new Object[state.getSchema().count];
+
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = result.getObject(i + 1);
+                }
+
+                state.rows++;
+                state.fetchNanos += System.nanoTime() - start;
+
+                return values;
+
+            }
+            else {
+                JDBC.release(result);
+                return null;
+            }
+        }
+        catch(SQLException e) {
+            throw new RuntimeException("row fetch failed (" + e.getMessage() + ")");
+        }
+    }
+
+
+    /**
+     * This is a generic helper method that fetches the next row from the result set
+     * and returns it in a ScalarArray.
+     */
+    private static ScalarArray getNextRowAsArray(ResultSet result) {
+        return JDBC.getNextRowAsArray(result, JDBC.getState(result));
+    }
+
+    /**
+     * Fetches the next row as an array using columns already read from the resultset.
+     */
+    private static ScalarArray getNextRowAsArray(ResultSet result, ResultState state) {
+
+        // The resultset has already been read to the end
+        if (state == null) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+
+        try {
+
+            // Check if there are any more rows available in the given result set
+            if (result.next()) {
+
+                ScalarArray row = SleepUtils.getArrayScalar().getArray();  // Create new row array
+                int count = state.getSchema().count;
+
+                for (int i = 1; i <= count; i++) {
+
+                    // Push onto array
+                    row.push(SleepUtils.getScalar(result.getString(i)));
+                }
+
+                state.rows++;
+                state.fetchNanos += System.nanoTime() - start;
+
+                return row;
+
+            }
+            else {
+                JDBC.release(result);
+                return null;
+            }
+        }
+        catch(SQLException e) {
+            throw new RuntimeException("row fetch failed (" + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * Reads up to maxRows rows of a resultset into column storage, and
+     * returns the number of rows read. The resultset is released if it was
+     * read to the end. With strings set every column is read as a string,
+     * like dbFetchBufferedArray() does.
+     */
+    private static int readColumns(ResultSet result, ResultState state, ColumnVector[] columns, int maxRows, boolean strings) throws SQLException {
+
+        ColumnSchema schema = state.getSchema();
+        long start = System.nanoTime();
+        int count = 0;
+
+        for (int i = 0; i < schema.count; i++) {
+            columns[i] = strings
+                    ? new ColumnVector(Types.VARCHAR, "java.lang.String", Math.min(maxRows, 1024))
+                    : new ColumnVector(schema.types[i], schema.classes[i], Math.min(maxRows, 1024));
+        }
+
+        while (count < maxRows && result.next()) {
+            for (int i = 0; i < schema.count; i++) {
+                columns[i].read(result, i + 1);
+            }
+            count++;
+        }
+
+        for (int i = 0; i < schema.count; i++) {
+            columns[i].trim();
+        }
+
+        state.rows += count;
+        state.fetchNanos += System.nanoTime() - start;
+
+        if (count < maxRows) {
+            JDBC.release(result);
+        }
+
+        return count;
+    }
+
+    /**
+     * Reads the rest of a resultset into column storage, and returns an
+     * array that creates the rows (as hashes or arrays) when they are read.
+     */
+    private static Scalar getColumnarRows(ScriptInstance inst, ResultSet result, ResultState state, boolean arrays) {
+
+        int count = 0;
+        ColumnSchema schema = null;
+        ColumnVector[] columns = new ColumnVector[0];
+
+        // The resultset may already have been read to the end
+        if (state != null) {
+            schema = state.getSchema();
+            columns = new ColumnVector[schema.count];
+
+            try {
+                count = JDBC.readColumns(result, state, columns, Integer.MAX_VALUE, arrays);
+            }
+            catch(SQLException e) {
+                throw new RuntimeException("row fetch failed (" + e.getMessage() + ")");
+            }
+        }
+
+        JDBC.setFetchedRows(inst, count);
+        return SleepUtils.getArrayScalar(new ColumnarRows(schema, columns, count, arrays));
+    }
+
+    /**
+     * Reads the rest of a resultset, keeping rows in the heap up to the given
+     * number of bytes and spilling the rest to disk, see SpillBuffer. Array
+     * rows are read as strings, like dbFetchBufferedArray() does.
+     */
+    private static Scalar getSpilledRows(ScriptInstance inst, ResultSet result, ResultState state, boolean arrays, long memory) {
+
+        ColumnSchema schema = (state == null) ? null : state.getSchema();
+        SpillBuffer buffer = new SpillBuffer(memory);
+
+        // The resultset may already have been read to the end
+        if (state != null) {
+            long start = System.nanoTime();
+
+            // Drivers that take the hint fetch the rows in parts. MySQL and
+            // PostgreSQL only do that for dbQueryStream() results, and have
+            // read everything into the heap before the first row otherwise.
+            JDBC.setFetchSizeHint(result, 1000);
+
+            try {
+                while (result.next()) {
+                    Object[] values = new Object[schema.count];
+
+                    for (int i = 0; i < schema.count; i++) {
+                        values[i] = arrays ? result.getString(i + 1) : result.getObject(i + 1);
+
+                        // Large objects are read in full, they can not be kept
+                        if (values[i] instanceof Blob) {
+                            values[i] = ((Blob)values[i]).getBytes(1, (int)((Blob)values[i]).length());
+                        }
+                        else if (values[i] instanceof Clob) {
+                            values[i] = ((Clob)values[i]).getSubString(1, (int)((Clob)values[i]).length());
+                        }
+                    }
+
+                    buffer.add(values);
+                }
+
+                buffer.finish();
+            }
+            catch(SQLException e) {
+                buffer.discard();
+                throw new RuntimeException("row fetch failed (" + e.getMessage() + ")");
+            }
+            catch(IOException e) {
+                buffer.discard();
+                throw new RuntimeException("row spill failed (" + e.getMessage() + ")");
+            }
+
+            state.rows += buffer.size();
+            state.fetchNanos += System.nanoTime() - start;
+            JDBC.release(result);
+        }
+
+        JDBC.setFetchedRows(inst, buffer.size());
+        return SleepUtils.getArrayScalar(new SpilledRows(schema, buffer, arrays));
+    }
+
+    /**
+     * Returns the state of a resultset, with its columns read from the meta
+     * data. The columns are read once and shared by every fetch from the same
+     * resultset. Returns null if the resultset has already been closed.
+     * Once the columns have been read this is a single lookup, so fetching
+     * a row does not ask the driver if the resultset is still open.
+     */
+    private static ResultState getState(ResultSet result) {
+
+        ResultState known = ResultState.get(result);
+
+        if (known != null && known.getSchema() != null) {
+            return known.isReleased() ? null : known;
+        }
+
+        if (JDBC.isClosed(result)) {
+            return null;
+        }
+
+        try {
+            ResultState state = ResultState.of(result);
+            state.schema(result);
+            return state;
+        }
+        catch(SQLException e) {
+            throw new RuntimeException("row fetch failed (" + e.getMessage() + ")");
+        }
+    }
+
+    
+
+    /**
+     * A buffered resultset kept in column storage, see ColumnVector. The
+     * rows are created, as hashes or arrays, only when they are read.
+     */
+    private static class ColumnarRows extends LazyScalarArray {
+
+        /**
+         *
+         */
+        private static final long serialVersionUID = 4017356628391550212L;
+
+        private final ColumnSchema schema;
+        private ColumnVector[] columns;
+        private final int size;
+        private final boolean arrays;
+
+        ColumnarRows(ColumnSchema schema, ColumnVector[] columns, int size, boolean arrays) {
+            this.schema = schema;
+            this.columns = columns;
+            this.size = size;
+            this.arrays = arrays;
+        }
+
+        int length() {
+            return size;
+        }
+
+        Scalar get(int index) {
+            Scalar[] values = new Scalar[columns.length];
+
+            for (int i = 0; i < columns.length; i++) {
+                values[i] = columns[i].get(index);
+            }
+
+            if (!arrays) {
+                return SleepUtils.getHashScalar(new RowScalarHash(schema, values));
+            }
+
+            ScalarArray row = SleepUtils.getArrayScalar().getArray();
+
+            for (int i = 0; i < values.length; i++) {
+                row.push(values[i]);
+            }
+
+            return SleepUtils.getArrayScalar(row);
+        }
+
+        void materialized() {
+            columns = null;
+        }
+    }
+
+
+    /**
+     * A buffered resultset that may be partly on disk, see SpillBuffer. The
+     * rows are decoded, as hashes or arrays, only when they are read.
+     */
+    private static class SpilledRows extends LazyScalarArray {
+
+        /**
+         *
+         */
+        private static final long serialVersionUID = -2861170454893620378L;
+
+        private final ColumnSchema schema;
+        private SpillBuffer buffer;
+        private final int size;
+        private final boolean arrays;
+
+        SpilledRows(ColumnSchema schema, SpillBuffer buffer, boolean arrays) {
+            this.schema = schema;
+            this.buffer = buffer;
+            this.size = buffer.size();
+            this.arrays = arrays;
+        }
+
+        int length() {
+            return size;
+        }
+
+        Scalar get(int index) {
+            Object[] row = buffer.get(index, schema.count);
+
+            if (!arrays) {
+                Scalar[] values = new Scalar[row.length];
+
+                for (int i = 0; i < row.length; i++) {
+                    values[i] = SleepUtils.getScalar(row[i]);
+                }
+
+                return SleepUtils.getHashScalar(new RowScalarHash(schema, values));
+            }
+
+            ScalarArray values = SleepUtils.getArrayScalar().getArray();
+
+            for (int i = 0; i < row.length; i++) {
+                values.push(SleepUtils.getScalar((String)row[i]));
+            }
+
+            return SleepUtils.getArrayScalar(values);
+        }
+
+        void materialized() {
+            buffer = null;
+        }
+    }
+
+
+    /**
+     * This is a custom ScalarHash implementation for rows. Rows from the same
+     * resultset share a single ColumnSchema for looking up columns, so a row
+     * is just an array of values. A real map is only created if a script puts
+     * keys into the row that are not columns.
+     */
+    private static class RowScalarHash implements ScalarHash {
+
+        /**
+         * 
+         */
+        private static final long serialVersionUID = -962941671697749347L;
+
+        // Columns shared by all rows in the resultset
+        private final ColumnSchema schema;
+
+        // Column values, null for columns removed by the script
+        private final Scalar[] values;
+
+        // Keys added by the script, created on demand
+        private HashMap<String, Scalar> extra;
+
+        public RowScalarHash(ColumnSchema schema, Scalar[] values) {
+            this.schema = schema;
+            this.values = values;
+        }
+
+        public Scalar getAt(Scalar key) {
+            String k = key.toString();
+            int i = schema.indexOf(k);
+
+            if (i >= 0) {
+                if (values[i] == null) {
+                    values[i] = SleepUtils.getEmptyScalar();
+                }
+                return values[i];
+            }
+
+            if (extra == null) {
+                extra = new HashMap<String, Scalar>();
+            }
+
+            Scalar value = extra.get(k);
+
+            if (value == null) {
+                value = SleepUtils.getEmptyScalar();
+                extra.put(k, value);
+            }
+
+            return value;
+        }
+
+        public ScalarArray keys() {
+            ScalarArray keys = SleepUtils.getArrayScalar().getArray();
+
+            for (String key : new RowMap().keySet()) {
+                keys.push(SleepUtils.getScalar(key));
+            }
+
+            return keys;
+        }
+
+        public void remove(Scalar key) {
+            new RowMap().remove(key.toString());
+        }
+
+        public Map getData() {
+            return new RowMap();
+        }
+
+        public String toString() {
+            return new RowMap().toString();
+        }
+
+        /**
+         * Live map view of the row. Columns with null values are left out,
+         * the same way a regular Sleep hash leaves out $null values.
+         */
+        private class RowMap extends AbstractMap<String, Scalar> {
+
+            public Scalar get(Object key) {
+                int i = schema.indexOf((String)key);
+
+                if (i >= 0) {
+                    return SleepUtils.isEmpty(values[i]) ? null : values[i];
+                }
+                return (extra == null) ? null : extra.get(key);
+            }
+
+            public Scalar put(String key, Scalar value) {
+                int i = schema.indexOf(key);
+
+                if (i >= 0) {
+                    Scalar previous = values[i];
+                    values[i] = value;
+                    return previous;
+                }
+
+                if (extra == null) {
+                    extra = new HashMap<String, Scalar>();
+                }
+                return extra.put(key, value);
+            }
+
+            public Scalar remove(Object key) {
+                int i = schema.indexOf((String)key);
+
+                if (i >= 0) {
+                    Scalar previous = values[i];
+                    values[i] = null;
+                    return previous;
+                }
+                return (extra == null) ? null : extra.remove(key);
+            }
+
+            public Set<Map.Entry<String, Scalar>> entrySet() {
+                return new AbstractSet<Map.Entry<String, Scalar>>() {
+
+                    public int size() {
+                        int size = 0;
+                        Iterator<Map.Entry<String, Scalar>> it = this.iterator();
+                        while (it.hasNext()) {
+                            it.next();
+                            size++;
+                        }
+                        return size;
+                    }
+
+                    public Iterator<Map.Entry<String, Scalar>> iterator() {
+                        return new RowIterator();
+                    }
+                };
+            }
+        }
+
+        /**
+         * Iterates over the columns of the row, and then over the extra keys.
+         */
+        private class RowIterator implements Iterator<Map.Entry<String, Scalar>> {
+
+            private int next = -1;
+            private int current = -1;
+            private Iterator<Map.Entry<String, Scalar>> extraIterator;
+            private Map.Entry<String, Scalar> extraNext;
+            private Map.Entry<String, Scalar> extraCurrent;
+
+            RowIterator() {
+                this.advance();
+            }
+
+            // Moves to the next column that has a value
+            private void advance() {
+                next++;
+
+                while (next < schema.count && (SleepUtils.isEmpty(values[next]) || schema.indexOf(schema.labels[next]) != next)) {
+                    next++;
+                }
+
+                if (next >= schema.count && extra != null) {
+                    // Iterate over a copy so that remove() can change the map
+                    if (extraIterator == null) {
+                        extraIterator = new ArrayList<Map.Entry<String, Scalar>>(extra.entrySet()).iterator();
+                    }
+
+                    extraNext = null;
+
+                    while (extraIterator.hasNext() && extraNext == null) {
+                        Map.Entry<String, Scalar> entry = extraIterator.next();
+
+                        if (!SleepUtils.isEmpty(entry.getValue())) {
+                            extraNext = entry;
+                        }
+                    }
+                }
+            }
+
+            public boolean hasNext() {
+                return next < schema.count || extraNext != null;
+            }
+
+            public Map.Entry<String, Scalar> next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                Map.Entry<String, Scalar> entry;
+
+                if (next < schema.count) {
+                    current = next;
+                    entry = new AbstractMap.SimpleEntry<String, Scalar>(schema.labels[next], values[next]) {
+                        private final int column = current;
+
+                        public Scalar setValue(Scalar value) {
+                            values[column] = value;
+                            return super.setValue(value);
+                        }
+                    };
+                }
+                else {
+                    current = schema.count;
+                    entry = extraCurrent = extraNext;
+                }
+
+                this.advance();
+                return entry;
+            }
+
+            public void remove() {
+                if (current < 0) {
+                    throw new IllegalStateException();
+                }
+                else if (current < schema.count) {
+                    values[current] = null;
+                }
+                else {
+                    extra.remove(extraCurrent.getKey());
+                }
+
+                current = -1;
+            }
+        }
+    }
+
+    // Sets the parameters of a prepared statement from an array of values
+    private static void setParameters(PreparedStatement stmt, ScalarArray values) throws SQLException {
+        ParameterBinder.of(stmt).bind(stmt, values);
+    }
+
+    // Turns batch update counts into an array for the script
+    private static Scalar getUpdateCounts(int[] counts) {
+        ScalarArray result = SleepUtils.getArrayScalar().getArray();
+
+        if (counts != null) {
+            for (int i = 0; i < counts.length; i++) {
+                result.push(SleepUtils.getScalar(counts[i]));
+            }
+        }
+
+        return SleepUtils.getArrayScalar(result);
+    }
+
+    // Turns query statistics into a hash for the script
+    private static Scalar getStats(QueryStats.Counter counter) {
+        Scalar stats = SleepUtils.getHashScalar();
+        ScalarArray histogram = SleepUtils.getArrayScalar().getArray();
+
+        for (int i = 0; i < QueryStats.BUCKETS; i++) {
+            histogram.push(SleepUtils.getScalar(counter.histogram.get(i)));
+        }
+
+        JDBC.put(stats.getHash(), "executions", SleepUtils.getScalar(counter.executions.get()));
+        JDBC.put(stats.getHash(), "errors", SleepUtils.getScalar(counter.errors.get()));
+        JDBC.put(stats.getHash(), "millis", SleepUtils.getScalar(counter.nanos.get() / 1000000));
+        JDBC.put(stats.getHash(), "rows", SleepUtils.getScalar(counter.rows.get()));
+        JDBC.put(stats.getHash(), "fetchMillis", SleepUtils.getScalar(counter.fetchNanos.get() / 1000000));
+        JDBC.put(stats.getHash(), "histogram", SleepUtils.getArrayScalar(histogram));
+
+        return stats;
+    }
+
+    // Puts a value into a hash that is returned to a script
+    private static void put(ScalarHash hash, String key, Scalar value) {
+        hash.getAt(SleepUtils.getScalar(key)).setValue(value);
+    }
+
+    // Returns the isolation level for a name like "READ_COMMITTED" (or
+    // "read committed"), or a level given as a number from java.sql.Connection
+    private static int getIsolation(Scalar level) throws SQLException {
+        String value = level.toString().trim().toUpperCase().replace(' ', '_');
+
+        if (value.equals("READ_UNCOMMITTED")) {
+            return Connection.TRANSACTION_READ_UNCOMMITTED;
+        }
+        else if (value.equals("READ_COMMITTED")) {
+            return Connection.TRANSACTION_READ_COMMITTED;
+        }
+        else if (value.equals("REPEATABLE_READ")) {
+            return Connection.TRANSACTION_REPEATABLE_READ;
+        }
+        else if (value.equals("SERIALIZABLE")) {
+            return Connection.TRANSACTION_SERIALIZABLE;
+        }
+        else if (value.length() > 0 && Character.isDigit(value.charAt(0))) {
+            return level.intValue();
+        }
+
+        throw new SQLException("unknown isolation level '" + level + "'");
+    }
+
+    // Returns a numeric option from an options hash given by a script,
+    // or the default value if the hash or the key is missing.
+    private static long getOption(ScalarHash options, String key, long defaultValue) {
+        if (options == null) {
+            return defaultValue;
+        }
+
+        Scalar value = (Scalar)options.getData().get(key);
+        return (value == null) ? defaultValue : value.longValue();
+    }
+
+    // Returns a string option from an options hash given by a script,
+    // or the default value if the hash or the key is missing.
+    private static String getOption(ScalarHash options, String key, String defaultValue) {
+        if (options == null) {
+            return defaultValue;
+        }
+
+        Scalar value = (Scalar)options.getData().get(key);
+        return (value == null) ? defaultValue : value.toString();
+    }
+
+    // Returns the number of fetched rows in the last query of any
+    // script, or 0 if no rows were fetched.
+    // Deprecated: scripts running at the same time overwrite each other's
+    // count, use getFetchedRows(ScriptInstance) instead.
+    public static int getFetchedRows() {
+        return JDBC.lastFetchedRows;
+    }
+
+    // Returns the number of fetched rows in the last query of a script,
+    // or 0 if no rows were fetched.
+    public static int getFetchedRows(ScriptInstance script) {
+        Integer rows = JDBC.fetchedRows.get(script);
+        return (rows == null) ? 0 : rows.intValue();
+    }
+
+    // Sets the number of fetched rows in the last query of a script
+    private static void setFetchedRows(ScriptInstance script, int rows) {
+        JDBC.fetchedRows.put(script, Integer.valueOf(rows));
+        JDBC.lastFetchedRows = rows;
+    }
+
+    /**
+     * Returns a statement object, either an idle one from the
+     * connection's cache, or a brand new one. The statement must
+     * be given back with releaseStatement() when it is done.
+     */
+    private static Statement getStatement(Connection c) throws SQLException {
+        return ConnectionState.of(c).statements.borrow();
+    }
+
+    /**
+     * Gives a statement back to the cache of its connection. Statements
+     * that did not come from a cache are left alone, unless the state of
+     * the connection is gone, in which case they are closed.
+     */
+    private static void releaseStatement(Statement stmt) {
+
+        // Released by dbNextResult() once its last result is handed out
+        if (MultiResult.isActive(stmt)) {
+            return;
+        }
+
+        try {
+            ConnectionState state = ConnectionState.get(stmt.getConnection());
+
+            if (state == null) {
+                stmt.close();
+            }
+            else {
+                state.release(stmt);
+            }
+        }
+        catch(SQLException e) {
+            // The connection is gone, and the statement with it
+        }
+    }
+
+    /**
+     * Closes a result set that has been read to the end, and gives its
+     * statement back to the cache so other queries can reuse it.
+     */
+    private static void release(ResultSet result) {
+        ResultState state = ResultState.get(result);
+
+        // Count the rows in the statistics, only once
+        if (state != null && !state.release()) {
+            return;
+        }
+
+        // Large objects can't be read once the result set is closed
+        if (state != null) {
+            state.readLobs();
+        }
+
+        try {
+            Statement stmt = result.getStatement();
+            result.close();
+
+            if (stmt != null && state != null && state.ownsStatement) {
+                ConnectionState owner = ConnectionState.get(stmt.getConnection());
+                stmt.close();
+
+                if (owner != null) {
+                    owner.disown(stmt);
+                }
+            }
+            else if (stmt != null) {
+                JDBC.releaseStatement(stmt);
+            }
+        }
+        catch(SQLException e) {
+            // Nothing to release
+        }
+    }
+
+    // Checks if a result set has been closed, either by release()
+    // or by the driver.
+    private static boolean isClosed(ResultSet result) {
+        try {
+            return result.isClosed();
+        }
+        catch(AbstractMethodError e) {
+            return false;    // Pre-JDBC 4 driver
+        }
+        catch(SQLException e) {
+            return true;
+        }
+    }
+
+
+    /**
+     * Performs a query on the database and returns the resultset. The
+     * statement stays borrowed until the resultset has been read.
+     */
+    private static ResultSet query(Connection c, String query) throws SQLException {
+        return JDBC.query(c, query, -1L);
+    }
+
+    /**
+     * Performs a query that may run for the given number of milliseconds,
+     * or for the default timeout of the connection if below 0.
+     */
+    private static ResultSet query(Connection c, String query, long timeout) throws SQLException {
+
+        // Fetch statement, from a replica if this is a read on a routed handle
+        Connection target = ReplicaRouter.route(c, query);
+        Statement stmt = JDBC.getStatement(target);
+        long start = System.nanoTime();
+
+        try {
+            StatementTimeout watch = StatementTimeout.start(c, stmt, timeout);
+            ResultSet result;
+
+            // Execute the query and return the resultset
+            ReplicaRouter.begin(target);
+
+            try {
+                result = stmt.executeQuery(query);
+            }
+            catch(SQLException e) {
+                throw watch.failed(e);
+            }
+            finally {
+                watch.stop();
+                ReplicaRouter.end(target);
+            }
+
+            QueryStats.executed(c, query, start, result, false);
+            return result;
+        }
+        catch(SQLException e) {
+            QueryStats.executed(c, query, start, null, true);
+            JDBC.releaseStatement(stmt);
+            throw e;
+        }
+    }
+
+    /**
+     * Performs a query in streaming mode and returns the resultset. The
+     * statement is forward-only and read-only, and belongs to the resultset
+     * alone. A fetch size of 0 means rows are streamed one at a time on
+     * MySQL, which only streams with a fetch size of Integer.MIN_VALUE,
+     * and fetched in batches of STREAM_FETCH_SIZE rows on other databases.
+     */
+    private static ResultSet streamQuery(Connection c, String query, int fetchSize) throws SQLException {
+
+        Statement stmt = c.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+
+        try {
+            if (fetchSize > 0) {
+                stmt.setFetchSize(fetchSize);
+            }
+            else if (c.getMetaData().getDatabaseProductName().equals("MySQL")) {
+                stmt.setFetchSize(Integer.MIN_VALUE);
+            }
+            else {
+                stmt.setFetchSize(STREAM_FETCH_SIZE);
+            }
+
+            long start = System.nanoTime();
+
+            try {
+                ResultSet result = stmt.executeQuery(query);
+                QueryStats.executed(c, query, start, result, false);
+                ResultState.of(result).ownsStatement = true;
+                ConnectionState.of(c).own(stmt);
+                return result;
+            }
+            catch(SQLException e) {
+                QueryStats.executed(c, query, start, null, true);
+                throw e;
+            }
+        }
+        catch(SQLException e) {
+            stmt.close();
+            throw e;
+        }
+    }
+
+    // Asks the driver to fetch at least the given number of rows per round
+    // trip. Resultsets streamed row by row (MySQL) are left alone.
+    private static void setFetchSizeHint(ResultSet result, int rows) {
+        try {
+            int current = result.getFetchSize();
+
+            if (current != Integer.MIN_VALUE && current < rows) {
+                result.setFetchSize(rows);
+            }
+        }
+        catch(SQLException e) {
+            // It is only a hint
+        }
+    }
+
+    /**
+     * Runs the same query on many connections in parallel and returns all
+     * the rows in one buffered array, in the order of the handles.
+     */
+    private static class dbQueryAll implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = -1759235702315404684L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            // Declarations
+            ScalarArray handles = BridgeUtilities.getArray(args);
+            String query = BridgeUtilities.getScalar(args).stringValue();
+            ScalarArray params = null;
+            ScalarHash options = null;
+
+            // Optional query parameters and options
+            while (!args.isEmpty()) {
+                Scalar arg = BridgeUtilities.getScalar(args);
+
+                if (arg.getArray() != null) {
+                    params = arg.getArray();
+                }
+                else if (arg.getHash() != null) {
+                    options = arg.getHash();
+                }
+            }
+
+            int parallelism = (int)Math.max(1, JDBC.getOption(options, "parallelism", DEFAULT_PARALLELISM));
+            String tag = JDBC.getOption(options, "tag", (String)null);
+
+            // Start a query per handle, with at most parallelism running at once
+            Semaphore permits = new Semaphore(parallelism);
+            List<Future<List<RowScalarHash>>> futures = new ArrayList<Future<List<RowScalarHash>>>();
+            Iterator it = handles.scalarIterator();
+
+            try {
+                while (it.hasNext()) {
+                    permits.acquire();
+                    futures.add(AsyncExecutor.submit(new QueryAllTask((Connection)((Scalar)it.next()).objectValue(), query, params, permits)));
+                }
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                inst.getScriptEnvironment().flagError("interrupted while starting queries");
+                return SleepUtils.getEmptyScalar();
+            }
+
+            // Collect the rows in the order of the handles
+            ScalarArray bufferedResult = SleepUtils.getArrayScalar().getArray();
+            int count = 0;
+
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    for (RowScalarHash row : futures.get(i).get()) {
+                        if (tag != null) {
+                            row.getAt(SleepUtils.getScalar(tag)).setValue(handles.getAt(i));
+                        }
+
+                        bufferedResult.push(SleepUtils.getHashScalar(row));
+                        count++;
+                    }
+                }
+                catch(ExecutionException e) {
+                    inst.getScriptEnvironment().flagError(e.getCause().getMessage());
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    inst.getScriptEnvironment().flagError("interrupted while waiting for the database");
+                    break;
+                }
+            }
+
+            JDBC.setFetchedRows(inst, count);
+
+            // Return the array to the calling script
+            return SleepUtils.getArrayScalar(bufferedResult);
+        }
+    }
+
+    /**
+     * Runs the query of dbQueryAll() on one connection and buffers the rows
+     */
+    private static class QueryAllTask implements Callable<List<RowScalarHash>>
+    {
+        private final Connection connection;
+        private final String query;
+        private final ScalarArray params;
+        private final Semaphore permits;
+
+        QueryAllTask(Connection connection, String query, ScalarArray params, Semaphore permits) {
+            this.connection = connection;
+            this.query = query;
+            this.params = params;
+            this.permits = permits;
+        }
+
+        public List<RowScalarHash> call() throws Exception {
+            try {
+                ConnectionState owner = ConnectionState.of(connection);
+                owner.lock();
+
+                try {
+                    ResultSet result = JDBC.query(connection, query, params);
+                    ResultState state = JDBC.getState(result);
+                    List<RowScalarHash> rows = new ArrayList<RowScalarHash>();
+                    RowScalarHash row;
+
+                    while ((row = JDBC.getNextRow(result, state)) != null) {
+                        rows.add(row);
+                    }
+
+                    return rows;
+                }
+                finally {
+                    owner.unlock();
+                }
+            }
+            finally {
+                permits.release();
+            }
+        }
+    }
+
+
+    /**
+     * Performs a query through the result cache and returns all its rows at
+     * once, like dbFetchBuffered(). The database is only queried when the
+     * result is not cached, or has been cached for longer than the given
+     * number of milliseconds.
+     */
+    private static class dbCachedQuery implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = 4457313580961028862L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            // Declarations
+            Connection connection = (Connection)BridgeUtilities.getObject(args);
+            String query = BridgeUtilities.getScalar(args).stringValue();
+            long ttl = BridgeUtilities.getLong(args, 60000);
+            ScalarArray params = args.isEmpty() ? null : BridgeUtilities.getArray(args);
+            List<Object> values = null;
+
+            if (params != null) {
+                values = new ArrayList<Object>(params.size());
+
+                for (int i = 0; i < params.size(); i++) {
+                    values.add(params.getAt(i).objectValue());
+                }
+            }
+
+            try {
+                DatabaseMetaData md = connection.getMetaData();
+                String key = ResultCache.key(md.getURL(), md.getUserName(), query, values);
+                ResultCache.Entry entry = ResultCache.get(key);
+
+                // Read the result into the cache
+                if (entry == null) {
+                    ResultSet result = JDBC.query(connection, query, params);
+                    ResultState state = JDBC.getState(result);
+                    List<Object[]> rows = new ArrayList<Object[]>();
+                    Object[] row;
+
+                    while ((row = JDBC.getNextRowValues(result, state)) != null) {
+                        rows.add(row);
+                    }
+
+                    entry = new ResultCache.Entry(query, state.getSchema(), rows, System.currentTimeMillis() + ttl);
+                    ResultCache.put(key, entry);
+                }
+
+                // Hand out fresh rows, so scripts can change them
+                ScalarArray bufferedResult = SleepUtils.getArrayScalar().getArray();
+
+                for (Object[] row : entry.rows) {
+                    Scalar[] rowValues = new Scalar[row.length];
+
+                    for (int i = 0; i < row.length; i++) {
+                        rowValues[i] = SleepUtils.getScalar(ResultCache.copy(row[i]));
+                    }
+
+                    bufferedResult.push(SleepUtils.getHashScalar(new RowScalarHash(entry.schema, rowValues)));
+                }
+
+                JDBC.setFetchedRows(inst, entry.rows.size());
+                return SleepUtils.getArrayScalar(bufferedResult);
+            }
+            catch(SQLException e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
+            }
+
+            return SleepUtils.getEmptyScalar();
+        }
+    }
+
+
+    /**
+     * Removes cached results whose SQL matches a regular expression, or all
+     * of them if no expression is given. Returns the number removed.
+     */
+    private static class dbCacheInvalidate implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = -2977390340806606525L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            String pattern = BridgeUtilities.getString(args, "");
+
+            try {
+                return SleepUtils.getScalar(ResultCache.invalidate(pattern.equals("") ? null : Pattern.compile(pattern)));
+            }
+            catch(PatternSyntaxException e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
+            }
+
+            return SleepUtils.getScalar(0);
+        }
+    }
+
+
+    /**
+     * Sets the memory budget of the result cache in bytes
+     */
+    private static class dbCacheSize implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = 1936043389112765310L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            ResultCache.setCapacity(BridgeUtilities.getLong(args, ResultCache.DEFAULT_CAPACITY));
+            return SleepUtils.getEmptyScalar();
+        }
+    }
+
+
+    /**
+     * Returns the result cache statistics as a hash
+     */
+    private static class dbCacheStats implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = -8540377611823391925L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            Scalar stats = SleepUtils.getHashScalar();
+
+            for (Map.Entry<String, Long> entry : ResultCache.getStats().entrySet()) {
+                JDBC.put(stats.getHash(), entry.getKey(), SleepUtils.getScalar(entry.getValue().longValue()));
+            }
+
+            return stats;
+        }
+    }
+
+
+    /**
+     * Returns a Sleep I/O handle for reading a large object column value
+     * as a stream, without reading all of it into memory.
+     */
+    private static class dbBlobStream implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = -8902446316720393124L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            Scalar value = BridgeUtilities.getScalar(args);
+            LobValue lob = LobValue.of(value);
+
+            try {
+                if (lob != null) {
+                    return SleepUtils.getIOHandleScalar(lob.stream(), null);
+                }
+
+                // Values that were read right away are streamed from memory
+                Object data = value.objectValue();
+                byte[] bytes = (data instanceof byte[]) ? (byte[])data : value.toString().getBytes("UTF-8");
+                return SleepUtils.getIOHandleScalar(new ByteArrayInputStream(bytes), null);
+            }
+            catch(Exception e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
+            }
+
+            return SleepUtils.getEmptyScalar();
+        }
+    }
+
+
+    /**
+     * Reads part of a large object column value: $length bytes of a blob,
+     * or characters of a clob, from a 0-based offset
+     */
+    private static class dbBlobRead implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = 7459016832249315862L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            Scalar value = BridgeUtilities.getScalar(args);
+            long offset = BridgeUtilities.getLong(args, 0);
+            int length = BridgeUtilities.getInt(args, Integer.MAX_VALUE);
+            LobValue lob = LobValue.of(value);
+
+            try {
+                if (lob != null) {
+                    length = (int)Math.max(0, Math.min(length, lob.length() - offset));
+                    return SleepUtils.getScalar(lob.read(offset, length));
+                }
+
+                // Values that were read right away
+                String data = value.toString();
+                int from = (int)Math.min(Math.max(0, offset), data.length());
+                return SleepUtils.getScalar(data.substring(from, (int)Math.min(data.length(), (long)from + length)));
+            }
+            catch(SQLException e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
+            }
+
+            return SleepUtils.getEmptyScalar();
+        }
+    }
+
+
+    /**
+     * Returns the length of a large object column value in bytes for blobs,
+     * or in characters for clobs, without reading it
+     */
+    private static class dbBlobLength implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = -1046731520966803377L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            Scalar value = BridgeUtilities.getScalar(args);
+            LobValue lob = LobValue.of(value);
+
+            try {
+                if (lob != null) {
+                    return SleepUtils.getScalar(lob.length());
+                }
+
+                Object data = value.objectValue();
+                return SleepUtils.getScalar((data instanceof byte[]) ? ((byte[])data).length : value.toString().length());
+            }
+            catch(SQLException e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
+            }
+
+            return SleepUtils.getEmptyScalar();
+        }
+    }
+
+
+    /**
+     * Loads a delimited text file into a table, and returns the number of
+     * rows loaded and rejected along with the time it took as a hash.
+     */
+    private static class dbLoadFile implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = 2250987416038127744L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            // Declarations
+            Connection connection = (Connection)BridgeUtilities.getObject(args);
+            String table = BridgeUtilities.getScalar(args).stringValue();
+            File file = new File(BridgeUtilities.getScalar(args).stringValue());
+            ScalarHash options = args.isEmpty() ? null : BridgeUtilities.getHash(args);
+
+            // Tab separated files are recognized by their name
+            String path = file.getName().toLowerCase();
+            String separator = (path.endsWith(".tsv") || path.endsWith(".tab")) ? "\t" : ",";
+
+            String delimiter = JDBC.getOption(options, "delimiter", separator);
+            String quote = JDBC.getOption(options, "quote", "\"");
+
+            if (delimiter.length() != 1 || quote.length() != 1) {
+                inst.getScriptEnvironment().flagError("delimiter and quote must be single characters");
+                return SleepUtils.getEmptyScalar();
+            }
+
+            try {
+                FileLoader loader = new FileLoader(delimiter.charAt(0), quote.charAt(0),
+                        JDBC.getOption(options, "header", 1) != 0,
+                        JDBC.getOption(options, "columns", (String)null),
+                        (int)JDBC.getOption(options, "batch", Batch.DEFAULT_FLUSH_SIZE),
+                        (int)JDBC.getOption(options, "commit", 10000),
+                        java.nio.charset.Charset.forName(JDBC.getOption(options, "encoding", "UTF-8")));
+
+                loader.load(connection, table, file);
+
+                double seconds = loader.nanos / 1000000000.0;
+                Scalar stats = SleepUtils.getHashScalar();
+
+                JDBC.put(stats.getHash(), "rows", SleepUtils.getScalar(loader.rows));
+                JDBC.put(stats.getHash(), "rejected", SleepUtils.getScalar(loader.rejected));
+                JDBC.put(stats.getHash(), "seconds", SleepUtils.getScalar(seconds));
+                JDBC.put(stats.getHash(), "rowsPerSecond", SleepUtils.getScalar((seconds > 0) ? loader.rows / seconds : 0.0));
+
+                return stats;
+            }
+            catch(Exception e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
+            }
+
+            return SleepUtils.getEmptyScalar();
+        }
+    }
+
+
+    /**
+     * Writes the rest of a ResultSet to a CSV or JSON Lines file, optionally
+     * gzipped, and returns the number of rows written.
+     */
+    private static class dbExport implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = -5514862217436608327L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            // Declarations
+            ResultSet result = (ResultSet)BridgeUtilities.getObject(args);
+            String path = BridgeUtilities.getScalar(args).stringValue();
+            String format = BridgeUtilities.getString(args, "csv");
+            boolean gzip = args.isEmpty() ? path.endsWith(".gz") : SleepUtils.isTrueScalar(BridgeUtilities.getScalar(args));
+            ResultState state = JDBC.getState(result);
+
+            // The resultset has already been read to the end
+            if (state == null) {
+                return SleepUtils.getScalar(0);
+            }
+
+            try {
+                long count = new ResultExporter(new File(path), format, gzip).export(result, state);
+                JDBC.setFetchedRows(inst, (int)count);
+                return SleepUtils.getScalar(count);
+            }
+            catch(Exception e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
+            }
+            finally {
+                JDBC.release(result);
+            }
+
+            return SleepUtils.getEmptyScalar();
+        }
+    }
+
+
+    /**
+     * Starts a transaction, optionally with the given isolation level. The
+     * connection stays out of autocommit mode until dbCommit() or dbRollback().
+     */
+    private static class dbBegin implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = 8214770361904583316L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            Connection connection = (Connection)BridgeUtilities.getObject(args);
+
+            try {
+                ConnectionState state = ConnectionState.of(connection);
+
+                // An explicit transaction ends grouped commits
+                if (state.isGrouping()) {
+                    state.setCommitGroup(connection, 0, 0);
+                }
+
+                if (!args.isEmpty()) {
+                    connection.setTransactionIsolation(JDBC.getIsolation(BridgeUtilities.getScalar(args)));
+                }
 
-            catch(Exception e) {
-                instance.getScriptEnvironment().flagError(e.getMessage());
-                return null;
+                connection.setAutoCommit(false);
             }
-            
-            return SleepUtils.getScalar(statement);
+            catch(SQLException e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
+            }
+
+            return SleepUtils.getEmptyScalar();
         }
-        
     }
-    
-    
+
+
     /**
-     * Set a value in a prepared statement
-     * 
-     * @author Andreas
-     *
+     * Commits the current transaction and goes back to autocommit mode
      */
-    private static class dbSet implements Function
+    private static class dbCommit implements Function
     {
         /**
-         * 
-         */
-        private static final long serialVersionUID = 7883375884590149183L;
-
-        /* (non-Javadoc)
-         * @see sleep.interfaces.Function#evaluate(java.lang.String, sleep.runtime.ScriptInstance, java.util.Stack)
+         *
          */
-        public Scalar evaluate(String name, ScriptInstance instance, Stack args) {
+        private static final long serialVersionUID = -4076291383513924790L;
 
-            /* Check number of arguments */
-            if (args.size() < 3) {
-                instance.getScriptEnvironment().flagError("Not enough arguments");
-                return null;
-            }
-            
-            /* Get arguments */
-            PreparedStatement stmt = (PreparedStatement)BridgeUtilities.getObject(args);
-            int index = BridgeUtilities.getInt(args);
-            Object value = BridgeUtilities.getObject(args);
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            Connection connection = (Connection)BridgeUtilities.getObject(args);
 
-            int type = java.sql.Types.BINARY;
-            
-            /* Check for user-specified type */
-            if (args.size() > 0) {
-                type = BridgeUtilities.getInt(args);
-            }
-            
-            /* Set value */
             try {
-                stmt.setObject(index, value, type);
-            } 
-            catch(Exception e) {
-                instance.getScriptEnvironment().flagError(e.getMessage());
-                return SleepUtils.getScalar(false);
+                ConnectionState.of(connection).endTransaction(connection, true);
             }
-            return SleepUtils.getScalar(true);
+            catch(SQLException e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
+            }
+
+            return SleepUtils.getEmptyScalar();
         }
     }
-    
+
+
     /**
-     * Set a value in a prepared statement
-     * 
-     * @author Andreas
-     *
+     * Rolls back the current transaction and goes back to autocommit mode,
+     * or rolls back to a savepoint and carries on with the transaction.
      */
-    private static class dbExecute implements Function
+    private static class dbRollback implements Function
     {
-
         /**
-         * 
+         *
          */
-        private static final long serialVersionUID = 8088754343975056604L;
+        private static final long serialVersionUID = 3620941175240361478L;
+
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            Connection connection = (Connection)BridgeUtilities.getObject(args);
 
-        /* (non-Javadoc)
-         * @see sleep.interfaces.Function#evaluate(java.lang.String, sleep.runtime.ScriptInstance, java.util.Stack)
-         */
-        public Scalar evaluate(String name, ScriptInstance instance, Stack args) {
-            
-            /* Check number of arguments */
-            if (args.size() < 1) {
-                instance.getScriptEnvironment().flagError("Not enough arguments");
-                return null;
-            }
-            
-            /* Get arguments */
-            PreparedStatement stmt = (PreparedStatement)BridgeUtilities.getObject(args);
-            
             try {
-                boolean result = stmt.execute();
-                
-                if (result) {
-                    return SleepUtils.getScalar(stmt.getResultSet());
+                if (args.isEmpty()) {
+                    ConnectionState.of(connection).endTransaction(connection, false);
                 }
                 else {
-                    return SleepUtils.getScalar(stmt.getUpdateCount());
+                    connection.rollback((Savepoint)BridgeUtilities.getObject(args));
                 }
-            } 
-            catch(Exception e) {
-                instance.getScriptEnvironment().flagError(e.getMessage());
-                return SleepUtils.getScalar(false);                
             }
+            catch(SQLException e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
+            }
+
+            return SleepUtils.getEmptyScalar();
         }
-    } 
-    
-    
-    /**
-     * This is a generic helper method that fetches the next result from
-     * a resultset, stores it in a RowScalarHash, and returns it. This
-     * is probably a good place to look for bottlenecks.
-     * TODO: Profiling and optimization
-      */
-    private static RowScalarHash getNextRow(ResultSet result) {
+    }
 
-        // Create new row hash
-        RowScalarHash row = new RowScalarHash();
 
-        try {
+    /**
+     * Sets a savepoint in the current transaction, optionally named,
+     * and returns it
+     */
+    private static class dbSavepoint implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = -7769003391860529046L;
 
-            // Check if there are any more rows available in the given result set
-            if (result.next()) {
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            Connection connection = (Connection)BridgeUtilities.getObject(args);
+
+            try {
+                if (args.isEmpty()) {
+                    return SleepUtils.getScalar(connection.setSavepoint());
+                }
+                return SleepUtils.getScalar(connection.setSavepoint(BridgeUtilities.getScalar(args).stringValue()));
+            }
+            catch(SQLException e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
+            }
 
-                // Get the meta data
-                ResultSetMetaData resultmd = result.getMetaData();
+            return SleepUtils.getEmptyScalar();
+        }
+    }
 
-                // Populate the hash with columns and data
-                int t = resultmd.getColumnCount();
 
-                // This kinda sucks, but it's the best I could think of.
-                // This code populates the row map with values mapped to
-                // keys (columns)
-                for (int i = 1; i <= t; i++) {
-                    // Put column/value into row hash
-                    row.put(resultmd.getColumnLabel(i), SleepUtils.getScalar(result.getObject(i)));
-                }
+    /**
+     * Releases a savepoint that is no longer needed
+     */
+    private static class dbReleaseSavepoint implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = 5179432840176023381L;
 
-                return row;
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            Connection connection = (Connection)BridgeUtilities.getObject(args);
 
+            try {
+                connection.releaseSavepoint((Savepoint)BridgeUtilities.getObject(args));
             }
-            else {
-                return null;
+            catch(SQLException e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
             }
-        }
-        catch(SQLException e) {
-            throw new RuntimeException("row fetch failed (" + e.getMessage() + ")");
+
+            return SleepUtils.getEmptyScalar();
         }
     }
 
 
     /**
-     * This is a generic helper method that fetches the next row from the result set
-     * and returns it in a ScalarArray.
+     * Returns the transaction isolation level of a connection by name,
+     * after setting it if a new level is given
      */
-    private static ScalarArray getNextRowAsArray(ResultSet result) {
+    private static class dbIsolation implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = -2531986605407794211L;
 
-        ScalarArray row = SleepUtils.getArrayScalar().getArray();  // Create new row array
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            Connection connection = (Connection)BridgeUtilities.getObject(args);
 
-        try {
+            try {
+                if (!args.isEmpty()) {
+                    connection.setTransactionIsolation(JDBC.getIsolation(BridgeUtilities.getScalar(args)));
+                }
 
-            // Check if there are any more rows available in the given result set
-            if (result.next()) {
+                switch (connection.getTransactionIsolation()) {
+                    case Connection.TRANSACTION_READ_UNCOMMITTED: return SleepUtils.getScalar("READ_UNCOMMITTED");
+                    case Connection.TRANSACTION_READ_COMMITTED:   return SleepUtils.getScalar("READ_COMMITTED");
+                    case Connection.TRANSACTION_REPEATABLE_READ:  return SleepUtils.getScalar("REPEATABLE_READ");
+                    case Connection.TRANSACTION_SERIALIZABLE:     return SleepUtils.getScalar("SERIALIZABLE");
+                    default:                                      return SleepUtils.getScalar("NONE");
+                }
+            }
+            catch(SQLException e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
+            }
 
-                int t = result.getMetaData().getColumnCount();
+            return SleepUtils.getEmptyScalar();
+        }
+    }
 
-                for (int i = 1; i <= t; i++) {
 
-                    // Push onto array
-                    row.push(SleepUtils.getScalar(result.getString(i)));
-                }
+    /**
+     * Turns grouped commits on, committing every N updates or every T
+     * milliseconds, or off again when both are 0
+     */
+    private static class dbCommitGroup implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = 1442905537068187425L;
 
-                return row;
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            Connection connection = (Connection)BridgeUtilities.getObject(args);
+            int size = BridgeUtilities.getInt(args, 0);
+            long millis = BridgeUtilities.getLong(args, 0);
 
+            try {
+                ConnectionState.of(connection).setCommitGroup(connection, size, millis);
             }
-            else {
-                return null;
+            catch(SQLException e) {
+                inst.getScriptEnvironment().flagError(e.getMessage());
             }
-        }
-        catch(SQLException e) {
-            throw new RuntimeException("row fetch failed (" + e.getMessage() + ")");
+
+            return SleepUtils.getEmptyScalar();
         }
     }
 
-    
 
     /**
-     * This is a custom ScalarHash implementation. Using this instead of the standard
-     * ScalarHash returned from SleepUtils cuts down on time drastically by using the
-     * HashMap.put() method instead of the ScalarHash.getAT() method.
+     * Sets the default timeout in milliseconds of the queries, updates and
+     * prepared statements executed on a connection, 0 for none, and
+     * returns the previous one. Without a timeout it only returns it.
      */
-    private static class RowScalarHash extends sleep.engine.types.HashContainer {
-
+    private static class dbTimeout implements Function
+    {
         /**
-         * 
+         *
          */
-        private static final long serialVersionUID = -962941671697749347L;
+        private static final long serialVersionUID = -6245039981857341208L;
 
-        public RowScalarHash() {
-            super();
-        }
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            Connection connection = (Connection)BridgeUtilities.getObject(args);
+            ConnectionState state = ConnectionState.of(connection);
+            long previous = state.getTimeout();
 
-        public RowScalarHash(HashMap _values) {
-            this.values = _values;
-        }
+            if (!args.isEmpty()) {
+                state.setTimeout(BridgeUtilities.getLong(args));
+            }
 
-        public Scalar put(String key, Scalar value) {
-            return (Scalar) (((HashMap<String,Scalar>)this.values).put(key, value));
+            return SleepUtils.getScalar(previous);
         }
+    }
 
-        public Scalar get(String key) {
-            return (Scalar) this.values.get(key);
-        }
 
-        public Object clone() {
-            return (Object)(new RowScalarHash((HashMap)((HashMap)(this.values)).clone()));
-        }
+    /**
+     * Cancels the statements being executed on a connection, for use from
+     * another fork(), and returns how many were cancelled.
+     */
+    private static class dbCancel implements Function
+    {
+        /**
+         *
+         */
+        private static final long serialVersionUID = 2738416069825910374L;
 
-        public String toString() {
-            return this.values.toString();
+        public Scalar evaluate(String name, ScriptInstance inst, Stack args)
+        {
+            Connection connection = (Connection)BridgeUtilities.getObject(args);
+            return SleepUtils.getScalar(ConnectionState.of(connection).cancel());
         }
     }
 
-    // Returns the number of fetched rows in the last query,
-    // or 0 if no rows were fetched.
-    public static int getFetchedRows() {
-        return JDBC.fetchedRows;
+
+    /**
+     * Executes a prepared statement and returns its resultset, or the update
+     * count as an Integer if the statement was an update.
+     */
+    private static Object execute(PreparedStatement stmt) throws SQLException {
+        return JDBC.execute(stmt, -1L);
     }
 
     /**
-     * Returns a new statement object, either an existing one
-     * from cache, or a brand new one.
+     * Executes a prepared statement that may run for the given number of
+     * milliseconds, or for the default timeout of the connection if below 0.
      */
-    private static Statement getStatement(Connection c) {
+    private static Object execute(PreparedStatement stmt, long timeout) throws SQLException {
 
-        // Try to fetch from cache first
-        Statement stmt = JDBC.statementCache.get(c);
+        // Reads on a routed handle go where they are routed to now
+        stmt = ReplicaRouter.target(stmt);
 
-        // Check if it existed in cache
-        if (stmt == null) {
-            try {
+        long start = System.nanoTime();
+        Connection c = stmt.getConnection();
+        int count;
+
+        // Not to be reused before its result has been read
+        ConnectionState.of(c).prepared.executing(stmt);
+
+        try {
+            StatementTimeout watch = StatementTimeout.start(c, stmt, timeout);
+            boolean hasResult;
 
-                // Create new statement
-                stmt = c.createStatement();
+            ReplicaRouter.begin(c);
+
+            try {
+                hasResult = stmt.execute();
             }
             catch(SQLException e) {
-
-                // This would be a pretty bad error, so we throw an exception
-                throw new RuntimeException(e.getMessage());
+                throw watch.failed(e);
+            }
+            finally {
+                watch.stop();
+                ReplicaRouter.end(c);
             }
 
-            // Check if cache is too big yet
-            if (JDBC.statementCache.size() >= 20) {
-
-                // Flush the cache
-                JDBC.statementCache = new HashMap<Connection, Statement>(20);
+            if (hasResult) {
+                ResultSet result = stmt.getResultSet();
+                QueryStats.executed(c, QueryStats.sqlOf(stmt), start, result, false);
+                return result;
             }
 
-            // Put the new statement object into the cache
-            JDBC.statementCache.put(c, stmt);
+            // Nothing more to read, the statement can be reused
+            count = stmt.getUpdateCount();
+            QueryStats.executed(c, QueryStats.sqlOf(stmt), start, null, false);
+            JDBC.releaseStatement(stmt);
+        }
+        catch(SQLException e) {
+            QueryStats.executed(c, QueryStats.sqlOf(stmt), start, null, true);
+            JDBC.releaseStatement(stmt);
+            throw e;
         }
 
-        // Return statement object
-        return stmt;
-    }
+        // Grouped commits count the update
+        ConnectionState.of(c).updated(c);
 
+        return Integer.valueOf(count);
+    }
 
     /**
-     * Performs a query on the database and returns the resultset
+     * Performs a query, through a cached prepared statement if there are
+     * values to set, and returns the resultset.
      */
-    private static ResultSet query(Connection c, String query) throws SQLException {
+    private static ResultSet query(Connection c, String query, ScalarArray values) throws SQLException {
+
+        if (values == null) {
+            return JDBC.query(c, query);
+        }
 
-        ResultSet result;
+        PreparedStatement stmt = ConnectionState.of(ReplicaRouter.route(c, query)).prepared.prepare(query);
+        QueryStats.prepared(stmt, query);
+        JDBC.setParameters(stmt, values);
 
-        // Fetch statement
-        Statement stmt = JDBC.getStatement(c);
+        Object result = JDBC.execute(stmt);
+
+        if (!(result instanceof ResultSet)) {
+            throw new SQLException("statement did not return a resultset: " + query);
+        }
 
+        return (ResultSet)result;
+    }
+
+    // Turns the result of execute() into a scalar for the script
+    private static Scalar getResultScalar(Object result) {
+        if (result instanceof Integer) {
+            return SleepUtils.getScalar(((Integer)result).intValue());
+        }
+        return SleepUtils.getScalar(result);
+    }
+
+    /**
+     * Waits for the result of an asynchronous function. A timeout of 0 waits
+     * for as long as it takes. Errors are flagged in the script.
+     */
+    private static Scalar await(ScriptInstance inst, Future future, long timeout) {
         try {
-            // Execute the query and store the resultset
-            result = stmt.executeQuery(query);
+            Object result = (timeout > 0) ? future.get(timeout, TimeUnit.MILLISECONDS) : future.get();
+            return JDBC.getResultScalar(result);
         }
-        catch(SQLException e) {
-            throw e;
+        catch(TimeoutException e) {
+            // Nobody is waiting for the result anymore, so don't let the
+            // operation hold on to its connection
+            future.cancel(true);
+            inst.getScriptEnvironment().flagError("timed out waiting for the database");
+        }
+        catch(ExecutionException e) {
+            inst.getScriptEnvironment().flagError(e.getCause().getMessage());
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            inst.getScriptEnvironment().flagError("interrupted while waiting for the database");
         }
 
-        return result;
+        return SleepUtils.getEmptyScalar();
     }
 
     /**
      * Performs an update on the database and returns the number of affected rows
      */
     private static int update(Connection connection, String update) throws SQLException {
+        return JDBC.update(connection, update, -1L);
+    }
 
-        int affectedRows;
+    /**
+     * Performs an update that may run for the given number of milliseconds,
+     * or for the default timeout of the connection if below 0.
+     */
+    private static int update(Connection connection, String update, long timeout) throws SQLException {
 
         // Fetch statement
         Statement stmt = JDBC.getStatement(connection);
+        long start = System.nanoTime();
+        boolean failed = true;
 
         try {
-            // Execute the query and store the resultset
-            affectedRows = stmt.executeUpdate(update);
+            StatementTimeout watch = StatementTimeout.start(connection, stmt, timeout);
+            int affectedRows;
+
+            // Execute the update and return the number of affected rows
+            try {
+                affectedRows = stmt.executeUpdate(update);
+            }
+            catch(SQLException e) {
+                throw watch.failed(e);
+            }
+            finally {
+                watch.stop();
+            }
+
+            failed = false;
+            ConnectionState.of(connection).updated(connection);
+            return affectedRows;
         }
-        catch(SQLException e) {
-            throw e;
+        finally {
+            QueryStats.executed(connection, update, start, null, failed);
+            JDBC.releaseStatement(stmt);
         }
-
-        return affectedRows;
     }
 }
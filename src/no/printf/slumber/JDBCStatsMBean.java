@@ -0,0 +1,62 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+
+/**
+ * JMX interface for the JDBC bridge statistics, registered as
+ * no.printf.slumber:type=JDBC.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+public interface JDBCStatsMBean
+{
+    // Number of queries and updates executed
+    public long getExecutions();
+
+    // Number of executions that failed
+    public long getErrors();
+
+    // Total time spent executing
+    public long getExecutionMillis();
+
+    // Rows fetched from result sets that have been read to the end
+    public long getRowsFetched();
+
+    // Total time spent fetching rows
+    public long getFetchMillis();
+
+    // Executions per latency bucket: under 1 ms, under 2 ms, under 4 ms, ...
+    public long[] getLatencyHistogram();
+
+    // Number of distinct SQL shapes seen
+    public int getShapeCount();
+
+    // Number of queries logged as slow
+    public long getSlowQueries();
+
+    // Slow query log threshold in milliseconds, negative when turned off
+    public long getSlowQueryThreshold();
+    public void setSlowQueryThreshold(long threshold);
+
+    // Clears all statistics
+    public void reset();
+}
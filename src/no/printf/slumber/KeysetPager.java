@@ -0,0 +1,260 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.regex.Pattern;
+
+
+/**
+ * Walks through the result of a query a page at a time for dbPaginate(),
+ * using the last key seen to find the next page (keyset pagination):
+ *
+ *    SELECT * FROM (query) slumber_page WHERE key > ? ORDER BY key
+ *
+ * With an index on the key every page takes the same time, however deep
+ * into the table it is, and no cursor is held open between pages. The
+ * pages run on cached prepared statements with the page size as their
+ * maximum number of rows.
+ *
+ * The key must be unique: rows that share the key of the last row of a
+ * page are skipped. Given a table name instead of a query, the pages are
+ * read from the table directly. Some databases, such as MySQL before 5.7,
+ * read the whole query into a temporary table for every page when it is
+ * wrapped as above.
+ *
+ * The pager is given to scripts as a proxy ResultSet that moves on to the
+ * next page by itself, so dbFetch() and friends read across pages without
+ * noticing. Every other call goes to the result set of the current page.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class KeysetPager implements InvocationHandler
+{
+
+    // Names a table rather than a query
+    private static final Pattern TABLE = Pattern.compile("[\\w.$`\"\\[\\]]+");
+
+    private final Connection connection;
+    private final String key;
+    private final int pageSize;
+
+    // Queries for the first page, and for the pages after a key
+    private final String firstQuery;
+    private final String nextQuery;
+
+    // Current page and its statement, null between pages
+    private PreparedStatement stmt;
+    private ResultSet page;
+    private int pageRows;
+
+    // Position of the key column in the pages
+    private int keyIndex;
+
+    // Key of the last row read, where the next page starts
+    private volatile Object lastKey;
+
+    private boolean closed;
+
+
+    private KeysetPager(Connection connection, String query, String key, int pageSize, Object startKey)
+    {
+        this.connection = connection;
+        this.key = key;
+        this.pageSize = Math.max(1, pageSize);
+        this.lastKey = startKey;
+
+        String from = TABLE.matcher(query.trim()).matches() ? query.trim() : "(" + query + ") slumber_page";
+        this.firstQuery = "SELECT * FROM " + from + " ORDER BY " + key;
+        this.nextQuery = "SELECT * FROM " + from + " WHERE " + key + " > ? ORDER BY " + key;
+    }
+
+    /**
+     * Returns a result set over every page of the query, starting after
+     * the given key, or at the beginning if the key is null.
+     */
+    public static ResultSet open(Connection c, String query, String key, int pageSize, Object startKey) throws SQLException
+    {
+        KeysetPager pager = new KeysetPager(c, query, key, pageSize, startKey);
+        pager.openPage();
+
+        return (ResultSet)Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                new Class[] { ResultSet.class }, pager);
+    }
+
+    /**
+     * Returns the key of the last row read from a pager, which can be given
+     * to open() to carry on from there later.
+     */
+    public static Object getLastKey(ResultSet result) throws SQLException
+    {
+        if (result != null && Proxy.isProxyClass(result.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(result);
+
+            if (handler instanceof KeysetPager) {
+                return ((KeysetPager)handler).lastKey;
+            }
+        }
+
+        throw new SQLException("not a paginated resultset");
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+        String name = method.getName();
+
+        if (name.equals("next")) {
+            return Boolean.valueOf(this.next());
+        }
+        else if (name.equals("close")) {
+            closed = true;
+            this.closePage();
+            return null;
+        }
+        else if (name.equals("isClosed")) {
+            return Boolean.valueOf(closed);
+        }
+        else if (name.equals("getStatement")) {
+            // Statements come and go with the pages
+            return null;
+        }
+        else if (name.equals("getFetchSize")) {
+            return Integer.valueOf(pageSize);
+        }
+        else if (name.equals("setFetchSize")) {
+            return null;
+        }
+        else if (name.equals("equals")) {
+            return Boolean.valueOf(proxy == args[0]);
+        }
+        else if (name.equals("hashCode")) {
+            return Integer.valueOf(System.identityHashCode(proxy));
+        }
+        else if (name.equals("toString")) {
+            return "paginated " + firstQuery;
+        }
+
+        if (page == null) {
+            throw new SQLException("paginated resultset has been read to the end");
+        }
+
+        try {
+            return method.invoke(page, args);
+        }
+        catch(InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Moves to the next row, going on to the next page when needed
+    private boolean next() throws SQLException
+    {
+        if (closed || page == null) {
+            return false;
+        }
+
+        if (!page.next()) {
+
+            // A page that is not full is the last one
+            boolean full = pageRows >= pageSize;
+            this.closePage();
+
+            if (!full) {
+                return false;
+            }
+
+            this.openPage();
+
+            if (!page.next()) {
+                this.closePage();
+                return false;
+            }
+        }
+
+        lastKey = page.getObject(keyIndex);
+        pageRows++;
+
+        return true;
+    }
+
+    // Runs the query for the page after the last key
+    private void openPage() throws SQLException
+    {
+        Object after = lastKey;
+        String query = (after == null) ? firstQuery : nextQuery;
+
+        stmt = ConnectionState.of(connection).prepared.prepare(query);
+        QueryStats.prepared(stmt, query);
+
+        long start = System.nanoTime();
+
+        try {
+            stmt.setMaxRows(pageSize);
+
+            if (after != null) {
+                stmt.setObject(1, after);
+            }
+
+            page = stmt.executeQuery();
+            QueryStats.executed(connection, query, start, null, false);
+
+            if (keyIndex == 0) {
+                keyIndex = page.findColumn(key);
+            }
+            pageRows = 0;
+        }
+        catch(SQLException e) {
+            QueryStats.executed(connection, query, start, null, true);
+            this.closePage();
+            throw e;
+        }
+    }
+
+    // Closes the current page and gives its statement back to the cache
+    private void closePage()
+    {
+        try {
+            if (page != null) {
+                page.close();
+            }
+        }
+        catch(SQLException e) {
+            // The statement is released either way
+        }
+
+        if (stmt != null) {
+
+            // Other queries get the statement from the cache as well
+            try {
+                stmt.setMaxRows(0);
+            }
+            catch(SQLException e) {
+                // Released either way
+            }
+
+            ConnectionState.of(connection).release(stmt);
+        }
+
+        page = null;
+        stmt = null;
+    }
+}
@@ -0,0 +1,504 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.util.*;
+import sleep.runtime.*;
+
+
+/**
+ * An array for scripts whose elements are created when they are read,
+ * from data kept in a more compact form. Sorting only keeps the new order
+ * of the elements, but changing the array in other ways (push, remove,
+ * assigning an element or a value in a row, reading past the end and so
+ * on) copies every element into a normal Sleep array first, which is
+ * then used from there on. The change is then made to that array, so it
+ * is kept like in any other array.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+abstract class LazyScalarArray implements ScalarArray
+{
+
+    private static final long serialVersionUID = 5803514987284601146L;
+
+    // Set once a script changes the array, which then holds the elements
+    private ScalarArray array;
+
+    // Index of the compact element at every position, once sorted
+    private int[] order;
+
+
+    /**
+     * Returns the number of elements in the compact data
+     */
+    abstract int length();
+
+    /**
+     * Creates the element at the given index from the compact data
+     */
+    abstract Scalar get(int index);
+
+    /**
+     * Called when the elements have been copied into a normal array, so the
+     * compact data can be dropped
+     */
+    void materialized()
+    {
+    }
+
+    // Copies the elements into a normal array
+    private ScalarArray array()
+    {
+        if (array == null) {
+            ScalarArray copy = SleepUtils.getArrayScalar().getArray();
+            int length = this.length();
+
+            for (int i = 0; i < length; i++) {
+                copy.push(this.element(i));
+            }
+
+            array = copy;
+            order = null;
+            this.materialized();
+        }
+        return array;
+    }
+
+    // Creates the element at the given position
+    private Scalar element(int index)
+    {
+        return this.get((order == null) ? index : order[index]);
+    }
+
+    public int size()
+    {
+        return (array == null) ? this.length() : array.size();
+    }
+
+    public Scalar getAt(int index)
+    {
+        if (array != null) {
+            return array.getAt(index);
+        }
+
+        int length = this.length();
+
+        if (index < 0 && index >= -length) {
+            index += length;
+        }
+
+        // Sleep arrays grow when they are read past the end
+        if (index < 0 || index >= length) {
+            return this.array().getAt(index);
+        }
+
+        return new Element(index, this.element(index));
+    }
+
+    public Iterator scalarIterator()
+    {
+        return new Iterator() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return next < size();
+            }
+
+            public Object next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return getAt(next++);
+            }
+
+            public void remove() {
+                LazyScalarArray.this.remove(--next);
+            }
+        };
+    }
+
+    public ScalarArray sublist(int start, int end)
+    {
+        ScalarArray list = SleepUtils.getArrayScalar().getArray();
+
+        for (int i = start; i < end; i++) {
+            list.push(this.getAt(i));
+        }
+
+        return list;
+    }
+
+    public Scalar pop()
+    {
+        return this.array().pop();
+    }
+
+    public Scalar push(Scalar value)
+    {
+        return this.array().push(value);
+    }
+
+    public Scalar add(Scalar value, int index)
+    {
+        return this.array().add(value, index);
+    }
+
+    public void remove(Scalar value)
+    {
+        this.array().remove(value);
+    }
+
+    public Scalar remove(int index)
+    {
+        return this.array().remove(index);
+    }
+
+    public void sort(final Comparator compare)
+    {
+        if (array != null) {
+            array.sort(compare);
+            return;
+        }
+
+        // Sleep compares scalars, but hands the comparator over untyped
+        @SuppressWarnings("unchecked")
+        Comparator<Scalar> scalars = compare;
+
+        int length = this.length();
+        int[] positions = new int[length];
+        int[] merged = new int[length];
+
+        for (int i = 0; i < length; i++) {
+            positions[i] = (order == null) ? i : order[i];
+        }
+
+        // Bottom-up merge sort of the positions, merging runs of twice the
+        // width every pass
+        for (int width = 1; width < length; width *= 2) {
+            for (int from = 0; from < length; from += 2 * width) {
+                int middle = Math.min(from + width, length);
+                int to = Math.min(from + 2 * width, length);
+
+                this.merge(positions, merged, from, middle, to, scalars);
+            }
+
+            int[] swap = positions;
+            positions = merged;
+            merged = swap;
+        }
+
+        order = positions;
+    }
+
+    // Merges two sorted runs of positions. The elements are created for
+    // the comparisons instead of all being kept at once, but the first
+    // element of each run is kept until it is merged, so every comparison
+    // creates one element rather than two.
+    private void merge(int[] from, int[] to, int start, int middle, int end, Comparator<Scalar> compare)
+    {
+        int i = start;
+        int j = middle;
+        int k = start;
+
+        Scalar left = (i < middle && j < end) ? this.get(from[i]) : null;
+        Scalar right = (i < middle && j < end) ? this.get(from[j]) : null;
+
+        while (i < middle && j < end) {
+            if (compare.compare(left, right) <= 0) {
+                to[k++] = from[i++];
+                left = (i < middle) ? this.get(from[i]) : null;
+            }
+            else {
+                to[k++] = from[j++];
+                right = (j < end) ? this.get(from[j]) : null;
+            }
+        }
+
+        System.arraycopy(from, i, to, k, middle - i);
+        System.arraycopy(from, j, to, k + middle - i, end - j);
+    }
+
+    /**
+     * An element handed to a script. Reading it costs nothing more, but
+     * changing it, or a value in the row it holds, first copies the array
+     * into a normal one and then makes the change there.
+     */
+    private class Element extends Scalar
+    {
+        private static final long serialVersionUID = 2146263802391843271L;
+
+        // Position of the element in the array
+        final int position;
+
+        // Set once the element holds its value, from then on changes go
+        // to the normal array
+        private final boolean ready;
+
+        Element(int position, Scalar value)
+        {
+            this.position = position;
+            super.setValue(value);
+            this.ready = true;
+        }
+
+        // The element in the normal array, which is created if necessary
+        Scalar target()
+        {
+            return LazyScalarArray.this.array().getAt(position);
+        }
+
+        // Checks if reads go to the normal array as well
+        boolean copied()
+        {
+            return array != null;
+        }
+
+        public void setValue(Scalar value)
+        {
+            if (ready) {
+                this.target().setValue(value);
+            }
+            else {
+                super.setValue(value);
+            }
+        }
+
+        public void setValue(ScalarType value)
+        {
+            if (ready) {
+                this.target().setValue(value);
+            }
+            else {
+                super.setValue(value);
+            }
+        }
+
+        public void setValue(ScalarArray value)
+        {
+            if (ready) {
+                this.target().setValue(value);
+            }
+            else {
+                super.setValue(value);
+            }
+        }
+
+        public void setValue(ScalarHash value)
+        {
+            if (ready) {
+                this.target().setValue(value);
+            }
+            else {
+                super.setValue(value);
+            }
+        }
+
+        public ScalarType getValue()
+        {
+            return this.copied() ? this.target().getValue() : super.getValue();
+        }
+
+        public ScalarType getActualValue()
+        {
+            return this.copied() ? this.target().getActualValue() : super.getActualValue();
+        }
+
+        public String stringValue()
+        {
+            return this.copied() ? this.target().stringValue() : super.stringValue();
+        }
+
+        public int intValue()
+        {
+            return this.copied() ? this.target().intValue() : super.intValue();
+        }
+
+        public long longValue()
+        {
+            return this.copied() ? this.target().longValue() : super.longValue();
+        }
+
+        public double doubleValue()
+        {
+            return this.copied() ? this.target().doubleValue() : super.doubleValue();
+        }
+
+        public Object objectValue()
+        {
+            return this.copied() ? this.target().objectValue() : super.objectValue();
+        }
+
+        public String toString()
+        {
+            return this.copied() ? this.target().toString() : super.toString();
+        }
+
+        public ScalarHash getHash()
+        {
+            if (this.copied()) {
+                return this.target().getHash();
+            }
+
+            final ScalarHash hash = super.getHash();
+
+            if (hash == null) {
+                return null;
+            }
+
+            // Values of the row change the row in the normal array
+            return new ScalarHash() {
+                private static final long serialVersionUID = -4120633853582398375L;
+
+                ScalarHash target() {
+                    return Element.this.target().getHash();
+                }
+
+                public Scalar getAt(final Scalar key) {
+                    if (Element.this.copied()) {
+                        return this.target().getAt(key);
+                    }
+                    return new Element(position, hash.getAt(key)) {
+                        private static final long serialVersionUID = 6419962335283541950L;
+
+                        Scalar target() {
+                            return Element.this.target().getHash().getAt(key);
+                        }
+                    };
+                }
+
+                public ScalarArray keys() {
+                    return Element.this.copied() ? this.target().keys() : hash.keys();
+                }
+
+                public void remove(Scalar key) {
+                    this.target().remove(key);
+                }
+
+                public Map getData() {
+                    return Element.this.copied() ? this.target().getData() : hash.getData();
+                }
+
+                public String toString() {
+                    return Element.this.copied() ? this.target().toString() : hash.toString();
+                }
+            };
+        }
+
+        public ScalarArray getArray()
+        {
+            if (this.copied()) {
+                return this.target().getArray();
+            }
+
+            final ScalarArray row = super.getArray();
+
+            if (row == null) {
+                return null;
+            }
+
+            // Values of the row change the row in the normal array
+            return new ScalarArray() {
+                private static final long serialVersionUID = 8317920649913368104L;
+
+                ScalarArray target() {
+                    return Element.this.target().getArray();
+                }
+
+                ScalarArray current() {
+                    return Element.this.copied() ? this.target() : row;
+                }
+
+                public Scalar getAt(final int index) {
+                    if (Element.this.copied() || index < 0 || index >= row.size()) {
+                        return this.target().getAt(index);
+                    }
+                    return new Element(position, row.getAt(index)) {
+                        private static final long serialVersionUID = -2745908342467154302L;
+
+                        Scalar target() {
+                            return Element.this.target().getArray().getAt(index);
+                        }
+                    };
+                }
+
+                public int size() {
+                    return this.current().size();
+                }
+
+                public Iterator scalarIterator() {
+                    return this.current().scalarIterator();
+                }
+
+                public ScalarArray sublist(int start, int end) {
+                    return this.current().sublist(start, end);
+                }
+
+                public Scalar pop() {
+                    return this.target().pop();
+                }
+
+                public Scalar push(Scalar value) {
+                    return this.target().push(value);
+                }
+
+                public Scalar add(Scalar value, int index) {
+                    return this.target().add(value, index);
+                }
+
+                public void remove(Scalar value) {
+                    this.target().remove(value);
+                }
+
+                public Scalar remove(int index) {
+                    return this.target().remove(index);
+                }
+
+                public void sort(Comparator compare) {
+                    this.target().sort(compare);
+                }
+
+                public String toString() {
+                    return this.current().toString();
+                }
+            };
+        }
+    }
+
+    public String toString()
+    {
+        if (array != null) {
+            return array.toString();
+        }
+
+        StringBuffer buffer = new StringBuffer("@(");
+        int length = this.length();
+
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                buffer.append(", ");
+            }
+            buffer.append(this.element(i).toString());
+        }
+
+        return buffer.append(")").toString();
+    }
+}
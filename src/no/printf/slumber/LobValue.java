@@ -0,0 +1,392 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.io.*;
+import java.sql.*;
+import sleep.runtime.*;
+
+
+/**
+ * A large object column value (BLOB, CLOB or NCLOB) that is only read
+ * when the script uses it. Rows hold the Blob or Clob of the
+ * column instead of its contents, so fetching rows with large documents
+ * that the script never looks at costs next to nothing. With drivers that
+ * use locators the contents stay in the database until they are read.
+ *
+ * To the script the value is a string: the text of a CLOB, or the bytes
+ * of a BLOB one character per byte, like other binary strings in Sleep.
+ * The contents are kept once read. dbBlobStream() reads the value as a
+ * stream instead, and dbBlobRead() reads only a part of it.
+ *
+ * Many drivers (Derby and H2 among them) invalidate a Blob or Clob once
+ * its result set is closed or its transaction ends. So values are only
+ * read lazily from rows fetched one at a time: rows that are buffered are
+ * read right away, and values still unread when their result set is read
+ * to the end are read before it is closed. Reading a value that the
+ * driver no longer has flags an error, and the value is empty. Some
+ * drivers, such as MySQL's, read large objects with the row anyway, so
+ * with them reading lazily saves no memory. Long columns that are not
+ * large objects, such as LONGVARCHAR for MySQL's TEXT, are read like any
+ * other column.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class LobValue implements ScalarType
+{
+
+    private static final long serialVersionUID = -3125829047358108547L;
+
+    // The Blob or Clob of the column, until its contents are read
+    private transient Blob blob;
+    private transient Clob clob;
+
+    // Whether the column is binary
+    private final boolean binary;
+
+    // Contents, once read: a byte[] for blobs, a String for clobs
+    private transient Object value;
+
+    // Script that errors reading the contents are flagged to
+    private final transient ScriptInstance inst;
+
+
+    private LobValue(Blob blob, Clob clob, ScriptInstance inst)
+    {
+        this.blob = blob;
+        this.clob = clob;
+        this.binary = (blob != null);
+        this.inst = inst;
+    }
+
+    /**
+     * Checks if a column of the given type from java.sql.Types is read lazily
+     */
+    static boolean isLob(int type)
+    {
+        return LobValue.isBinary(type) || type == Types.CLOB || type == Types.NCLOB;
+    }
+
+    private static boolean isBinary(int type)
+    {
+        return type == Types.BLOB;
+    }
+
+    /**
+     * Returns a scalar for a large object column in the current row, which
+     * is read when the script uses it and flags errors to the given script.
+     * Without a script the contents are read right away. Falls back to
+     * reading the value right away if the driver has no Blob or Clob for
+     * the column.
+     */
+    static Scalar read(ResultSet result, ResultState state, int column, int type, ScriptInstance inst) throws SQLException
+    {
+        Blob blob = null;
+        Clob clob = null;
+
+        try {
+            if (LobValue.isBinary(type)) {
+                blob = result.getBlob(column);
+            }
+            else {
+                clob = result.getClob(column);
+            }
+        }
+        catch(SQLException e) {
+            return SleepUtils.getScalar(result.getObject(column));
+        }
+
+        if (blob == null && clob == null) {
+            return SleepUtils.getEmptyScalar();
+        }
+
+        LobValue lob = new LobValue(blob, clob, inst);
+
+        if (inst == null) {
+            lob.load();
+        }
+        else {
+            state.unread(lob);
+        }
+
+        Scalar scalar = SleepUtils.getEmptyScalar();
+        scalar.setValue(lob);
+        return scalar;
+    }
+
+    /**
+     * Returns the large object in a scalar, or null if it is not one
+     */
+    static LobValue of(Scalar scalar)
+    {
+        ScalarType value = scalar.getActualValue();
+        return (value instanceof LobValue) ? (LobValue)value : null;
+    }
+
+    /**
+     * Returns the length in bytes of a blob, or in characters of a clob
+     */
+    public synchronized long length() throws SQLException
+    {
+        if (value != null) {
+            return binary ? ((byte[])value).length : ((String)value).length();
+        }
+        return binary ? this.blob().length() : this.clob().length();
+    }
+
+    /**
+     * Returns a stream of the contents. Clobs are read as UTF-8.
+     */
+    public synchronized InputStream stream() throws SQLException
+    {
+        if (value != null) {
+            return binary ? new ByteArrayInputStream((byte[])value) : new Utf8Stream(new StringReader((String)value));
+        }
+        if (binary) {
+            return this.blob().getBinaryStream();
+        }
+        return new Utf8Stream(this.clob().getCharacterStream());
+    }
+
+    /**
+     * Reads part of the contents, starting at the 0-based offset, as a string
+     */
+    public synchronized String read(long offset, int length) throws SQLException
+    {
+        if (value != null) {
+            String contents = this.toString();
+            int from = (int)Math.min(Math.max(0, offset), contents.length());
+            return contents.substring(from, (int)Math.min(contents.length(), (long)from + length));
+        }
+        if (binary) {
+            return LobValue.toString(this.blob().getBytes(offset + 1, length));
+        }
+        return this.clob().getSubString(offset + 1, length);
+    }
+
+    /**
+     * Reads and keeps the contents, if they have not been read yet, and
+     * frees the Blob or Clob
+     */
+    synchronized void load() throws SQLException
+    {
+        if (value != null) {
+            return;
+        }
+
+        if (binary) {
+            value = this.blob().getBytes(1, (int)blob.length());
+        }
+        else {
+            value = this.clob().getSubString(1, (int)clob.length());
+        }
+
+        this.free();
+    }
+
+    // Returns the contents, reading them if necessary. If that fails the
+    // error is flagged and the contents are empty.
+    private synchronized Object contents()
+    {
+        try {
+            this.load();
+        }
+        catch(SQLException e) {
+            if (inst != null) {
+                inst.getScriptEnvironment().flagError("large object read failed (" + e.getMessage() + ")");
+            }
+            return binary ? (Object)new byte[0] : "";
+        }
+        return value;
+    }
+
+    private Blob blob() throws SQLException
+    {
+        if (blob == null) {
+            throw new SQLException("large object is no longer available");
+        }
+        return blob;
+    }
+
+    private Clob clob() throws SQLException
+    {
+        if (clob == null) {
+            throw new SQLException("large object is no longer available");
+        }
+        return clob;
+    }
+
+    // Lets the driver free the Blob or Clob once the contents are read
+    private void free()
+    {
+        try {
+            if (blob != null) {
+                blob.free();
+            }
+            if (clob != null) {
+                clob.free();
+            }
+        }
+        catch(SQLException e) {
+            // Freed when it is garbage collected instead
+        }
+        catch(AbstractMethodError e) {
+            // Pre-JDBC 4 driver
+        }
+
+        blob = null;
+        clob = null;
+    }
+
+    // Binary data as a Sleep string, one character per byte
+    private static String toString(byte[] bytes)
+    {
+        try {
+            return new String(bytes, "ISO-8859-1");
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    public ScalarType copyValue()
+    {
+        return this;
+    }
+
+    public int intValue()
+    {
+        return SleepUtils.getScalar(this.toString()).intValue();
+    }
+
+    public long longValue()
+    {
+        return SleepUtils.getScalar(this.toString()).longValue();
+    }
+
+    public double doubleValue()
+    {
+        return SleepUtils.getScalar(this.toString()).doubleValue();
+    }
+
+    public String toString()
+    {
+        Object contents = this.contents();
+        return (contents instanceof byte[]) ? LobValue.toString((byte[])contents) : (String)contents;
+    }
+
+    public Object objectValue()
+    {
+        return this.contents();
+    }
+
+    public Class getType()
+    {
+        return this.getClass();
+    }
+
+    // Serialized as the plain contents, the Blob or Clob can not be
+    private Object writeReplace()
+    {
+        return SleepUtils.getScalar(this.objectValue()).getActualValue();
+    }
+
+
+    /**
+     * Reads the characters of a clob as UTF-8 bytes
+     */
+    private static class Utf8Stream extends InputStream
+    {
+        private final Reader reader;
+        private final char[] chars = new char[4096];
+        private byte[] bytes = new byte[0];
+        private int position;
+
+        // A high surrogate left over from the last read
+        private int pending = -1;
+
+        Utf8Stream(Reader reader)
+        {
+            this.reader = reader;
+        }
+
+        public int read() throws IOException
+        {
+            if (!this.fill()) {
+                return -1;
+            }
+            return bytes[position++] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (!this.fill()) {
+                return -1;
+            }
+
+            int n = Math.min(len, bytes.length - position);
+            System.arraycopy(bytes, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        // Encodes the next characters when the bytes have been read
+        private boolean fill() throws IOException
+        {
+            while (position == bytes.length) {
+                int start = 0;
+
+                if (pending >= 0) {
+                    chars[0] = (char)pending;
+                    pending = -1;
+                    start = 1;
+                }
+
+                int n = reader.read(chars, start, chars.length - start);
+
+                if (n < 0) {
+                    if (start == 0) {
+                        return false;
+                    }
+                    n = 0;
+                }
+                else if (n > 0 && Character.isHighSurrogate(chars[start + n - 1])) {
+                    // Keep it until its other half has been read
+                    pending = chars[start + n - 1];
+                    n--;
+                }
+
+                bytes = new String(chars, 0, start + n).getBytes("UTF-8");
+                position = 0;
+            }
+            return true;
+        }
+
+        public void close() throws IOException
+        {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.sql.*;
+
+
+/**
+ * Walks through the results of a statement that returns more than one,
+ * such as several queries sent together with dbQueryMulti() or a stored
+ * procedure. Every result comes back from the same round trip, and
+ * dbNextResult() hands them out one at a time: a result set, or an
+ * update count for statements that are not queries.
+ *
+ * dbQueryMulti() runs on a statement of its own, since moving to the
+ * next result closes the result set before it. The statement is closed
+ * once the last result has been handed out, or with its connection if
+ * the script never gets that far. A prepared statement that dbNextResult()
+ * is used on is kept from the statement cache until its last result has
+ * been handed out.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class MultiResult
+{
+
+    // Statements with results left. The statements are only weakly
+    // referenced, so statements that scripts drop go away with them.
+    private static final WeakRegistry<Statement, MultiResult> results = new WeakRegistry<Statement, MultiResult>();
+
+    // Set if the first result is a result set
+    private final boolean first;
+
+    // Set once the first result has been handed out
+    private boolean started;
+
+    // Set if the statement was created for the results, and is closed
+    // with the last one
+    private final boolean ownsStatement;
+
+
+    private MultiResult(boolean first, boolean ownsStatement)
+    {
+        this.first = first;
+        this.ownsStatement = ownsStatement;
+    }
+
+    /**
+     * Sends SQL with any number of statements to the database in one go,
+     * and returns the statement to read the results from
+     */
+    public static Statement execute(Connection c, String sql) throws SQLException
+    {
+        Statement stmt = c.createStatement();
+        long start = System.nanoTime();
+
+        try {
+            boolean first = stmt.execute(sql);
+            QueryStats.executed(c, sql, start, null, false);
+            results.put(stmt, new MultiResult(first, true));
+            ConnectionState.of(c).own(stmt);
+        }
+        catch(SQLException e) {
+            QueryStats.executed(c, sql, start, null, true);
+            stmt.close();
+            throw e;
+        }
+
+        return stmt;
+    }
+
+    /**
+     * Checks if a statement has results left to hand out, so it must not
+     * go back to the cache yet
+     */
+    public static boolean isActive(Statement stmt)
+    {
+        return results.get(PreparedStatementCache.unwrap(stmt)) != null;
+    }
+
+    /**
+     * Returns the next result of a statement: a ResultSet, an Integer
+     * update count, or null when there are no more results
+     */
+    public static Object next(Statement stmt) throws SQLException
+    {
+        Statement key = PreparedStatementCache.unwrap(stmt);
+        MultiResult multi = results.get(key);
+        boolean isResultSet;
+
+        // A prepared statement run with dbExecute(), its first result has
+        // already been handed out
+        if (multi == null) {
+            multi = new MultiResult(false, false);
+            multi.started = true;
+            results.put(key, multi);
+            ConnectionState.of(stmt.getConnection()).prepared.executing(stmt);
+        }
+
+        if (!multi.started) {
+            multi.started = true;
+            isResultSet = multi.first;
+        }
+        else {
+            isResultSet = stmt.getMoreResults();
+        }
+
+        if (isResultSet) {
+            return stmt.getResultSet();
+        }
+
+        int count = stmt.getUpdateCount();
+
+        if (count != -1) {
+            return Integer.valueOf(count);
+        }
+
+        // That was the last one
+        results.remove(key);
+
+        ConnectionState state = ConnectionState.of(stmt.getConnection());
+
+        if (multi.ownsStatement) {
+            stmt.close();
+            state.disown(stmt);
+        }
+        else {
+            state.release(stmt);
+        }
+
+        return null;
+    }
+}
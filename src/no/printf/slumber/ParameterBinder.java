@@ -0,0 +1,197 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.sql.*;
+import java.util.*;
+import sleep.engine.types.*;
+import sleep.runtime.*;
+
+
+/**
+ * Binds script values to the parameters of a prepared statement with the
+ * setter that matches the type of the value: setInt() for ints, setLong()
+ * for longs, setDouble() for doubles, setString() for strings, setBytes()
+ * for byte arrays and setNull() for $null. Other objects are passed to
+ * setObject(). This way the driver never has to guess, and numbers are
+ * sent as numbers so the database can use its indexes.
+ *
+ * The setter used for a parameter is remembered together with the type
+ * of the value, so binding the same types again (which is what loops
+ * over a prepared statement do) skips the type checks. The SQL types
+ * used for nulls are read from the parameter meta data once.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class ParameterBinder
+{
+
+    // Binders by statement. The statements are only weakly referenced,
+    // so binders of statements that are closed go away with them.
+    private static final WeakRegistry<PreparedStatement, ParameterBinder> binders = new WeakRegistry<PreparedStatement, ParameterBinder>();
+
+    // Setters
+    private static final int INT = 0;
+    private static final int LONG = 1;
+    private static final int DOUBLE = 2;
+    private static final int STRING = 3;
+    private static final int NULL = 4;
+    private static final int OBJECT = 5;
+
+    // Type of the value last bound to every parameter, and its setter.
+    // Index 0 is the first parameter.
+    private Class[] types = new Class[8];
+    private int[] setters = new int[8];
+
+    // SQL types for nulls, read from the meta data on the first null
+    private int[] nullTypes;
+
+
+    private ParameterBinder()
+    {
+    }
+
+    /**
+     * Returns the binder of a statement, creating it if necessary
+     */
+    public static ParameterBinder of(PreparedStatement stmt)
+    {
+        ParameterBinder binder = binders.get(stmt);
+
+        if (binder == null) {
+            ParameterBinder created = new ParameterBinder();
+            binder = binders.putIfAbsent(stmt, created);
+
+            if (binder == null) {
+                binder = created;
+            }
+        }
+
+        return binder;
+    }
+
+    /**
+     * Binds a value to a parameter (1-based) of the statement
+     */
+    public synchronized void bind(PreparedStatement stmt, int index, Scalar value) throws SQLException
+    {
+        ScalarType type = value.getValue();
+        int i = index - 1;
+
+        if (i >= types.length) {
+            types = Arrays.copyOf(types, Math.max(types.length * 2, index));
+            setters = Arrays.copyOf(setters, types.length);
+        }
+
+        // Only look at the type when it differs from the last one
+        if (types[i] != type.getClass()) {
+            types[i] = type.getClass();
+            setters[i] = ParameterBinder.setterOf(type);
+        }
+
+        switch (setters[i]) {
+            case INT:
+                stmt.setInt(index, type.intValue());
+                break;
+            case LONG:
+                stmt.setLong(index, type.longValue());
+                break;
+            case DOUBLE:
+                stmt.setDouble(index, type.doubleValue());
+                break;
+            case STRING:
+                stmt.setString(index, value.stringValue());
+                break;
+            case NULL:
+                stmt.setNull(index, this.nullType(stmt, index));
+                break;
+            default:
+                Object object = type.objectValue();
+
+                if (object == null) {
+                    stmt.setNull(index, this.nullType(stmt, index));
+                }
+                else if (object instanceof byte[]) {
+                    stmt.setBytes(index, (byte[])object);
+                }
+                else {
+                    stmt.setObject(index, object);
+                }
+        }
+    }
+
+    /**
+     * Binds an array of values to the parameters of the statement
+     */
+    public void bind(PreparedStatement stmt, ScalarArray values) throws SQLException
+    {
+        int size = values.size();
+
+        for (int i = 0; i < size; i++) {
+            this.bind(stmt, i + 1, values.getAt(i));
+        }
+    }
+
+    // Returns the setter for a kind of value
+    private static int setterOf(ScalarType type)
+    {
+        if (type instanceof IntValue) {
+            return INT;
+        }
+        else if (type instanceof LongValue) {
+            return LONG;
+        }
+        else if (type instanceof DoubleValue) {
+            return DOUBLE;
+        }
+        else if (type instanceof StringValue) {
+            return STRING;
+        }
+        else if (type instanceof NullValue) {
+            return NULL;
+        }
+        return OBJECT;
+    }
+
+    // Returns the SQL type to use for a null parameter
+    private int nullType(PreparedStatement stmt, int index)
+    {
+        if (nullTypes == null) {
+            try {
+                ParameterMetaData md = stmt.getParameterMetaData();
+                nullTypes = new int[md.getParameterCount()];
+
+                for (int i = 0; i < nullTypes.length; i++) {
+                    nullTypes[i] = md.getParameterType(i + 1);
+                }
+            }
+            catch(SQLException e) {
+                // The driver cannot tell, let it work it out from NULL
+                nullTypes = new int[0];
+            }
+            catch(AbstractMethodError e) {
+                nullTypes = new int[0];
+            }
+        }
+
+        return (index <= nullTypes.length) ? nullTypes[index - 1] : Types.NULL;
+    }
+}
@@ -0,0 +1,518 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.lang.ref.*;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+
+
+/**
+ * Cache of prepared statements for a single connection, keyed by their
+ * SQL text. This lets loops that prepare the same SQL over and over reuse
+ * a single statement, so the server can keep its parsed plan.
+ *
+ * A statement handed out by dbPrepare() belongs to the script for as long
+ * as the script holds it. The script gets a proxy for the statement, and
+ * the statement only goes back to the cache, with its parameters cleared,
+ * once the script closes it with dbClosePrepared() or drops it and the
+ * proxy is garbage collected, and no result set of it is being read. So
+ * two handles never share a statement. Since loops usually prepare again
+ * instead of reusing their handle, and the proxy is only collected much
+ * later, a handle whose result set has been read also gives up its
+ * statement when the same SQL is prepared again. Should the script use the
+ * handle after all, it gets a statement back with the parameters it had.
+ * Statements used inside the bridge are borrowed with prepare() and given
+ * back with release() when they are done.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class PreparedStatementCache
+{
+
+    // Default number of cached statements per connection
+    static final int DEFAULT_CAPACITY = 32;
+
+    // Maximum number of statements held by scripts per connection
+    private static final int MAX_HELD = 256;
+
+    private final Connection connection;
+
+    // Maximum number of idle statements, 0 turns the cache off
+    private int capacity = DEFAULT_CAPACITY;
+
+    // Idle statements by SQL text, least recently used first
+    private final LinkedHashMap<String, PreparedStatement> idle = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+
+    // Statements borrowed inside the bridge, and the SQL they were prepared with
+    private final IdentityHashMap<PreparedStatement, String> borrowed = new IdentityHashMap<PreparedStatement, String>();
+
+    // Statements held by scripts, and the references to their proxies
+    private final IdentityHashMap<PreparedStatement, Handle> held = new IdentityHashMap<PreparedStatement, Handle>();
+    private final Set<Held> references = new HashSet<Held>();
+    private final ReferenceQueue<PreparedStatement> dropped = new ReferenceQueue<PreparedStatement>();
+
+    // Statistics
+    private long hits;
+    private long misses;
+    private long evictions;
+
+
+    PreparedStatementCache(Connection connection)
+    {
+        this.connection = connection;
+    }
+
+    /**
+     * Returns the statement behind a handle given to a script, the one it
+     * was last executed with for routed reads, or the statement itself if
+     * it is not one
+     */
+    public static Statement unwrap(Statement stmt)
+    {
+        stmt = ReplicaRouter.current(stmt);
+
+        if (stmt != null && Proxy.isProxyClass(stmt.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(stmt);
+
+            if (handler instanceof Handle) {
+                PreparedStatement held = ((Handle)handler).stmt;
+                return (held == null) ? stmt : held;
+            }
+        }
+        return stmt;
+    }
+
+    /**
+     * Borrows a prepared statement for the given SQL, either an idle one
+     * from the cache or a newly prepared one. It must be given back with
+     * release().
+     */
+    public synchronized PreparedStatement prepare(String sql) throws SQLException
+    {
+        PreparedStatement stmt = this.take(sql);
+        borrowed.put(stmt, sql);
+        return stmt;
+    }
+
+    /**
+     * Returns a handle to a prepared statement for the given SQL that
+     * belongs to the script until it is closed or dropped
+     */
+    public synchronized PreparedStatement open(String sql) throws SQLException
+    {
+        PreparedStatement stmt = this.take(sql);
+        Handle handle = new Handle(stmt, sql);
+        PreparedStatement proxy = (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class[] { PreparedStatement.class }, handle);
+
+        held.put(stmt, handle);
+        references.add(new Held(proxy, handle, dropped));
+        this.limit();
+        return proxy;
+    }
+
+    /**
+     * Marks a statement held by a script as executing, so it is not reused
+     * until its result has been read, even if the script drops it
+     */
+    public synchronized void executing(Statement stmt)
+    {
+        Handle handle = held.get(PreparedStatementCache.unwrap(stmt));
+
+        if (handle != null) {
+            handle.busy = true;
+            handle.executed = true;
+        }
+    }
+
+    /**
+     * Called when a statement has been executed, and its result set read.
+     * Borrowed statements go back to the cache, and statements held by a
+     * script once the script no longer holds them. Returns false if the
+     * statement did not come from this cache.
+     */
+    public synchronized boolean release(Statement stmt)
+    {
+        stmt = PreparedStatementCache.unwrap(stmt);
+
+        String sql = borrowed.remove(stmt);
+
+        if (sql != null) {
+            this.idle((PreparedStatement)stmt, sql);
+            return true;
+        }
+
+        Handle handle = held.get(stmt);
+
+        if (handle == null) {
+            return false;
+        }
+
+        handle.busy = false;
+
+        if (handle.closed) {
+            held.remove(stmt);
+            this.idle(handle.stmt, handle.sql);
+        }
+
+        return true;
+    }
+
+    /**
+     * Sets the number of statements to cache. A size of 0 turns the
+     * cache off and closes every idle statement.
+     */
+    public synchronized void setCapacity(int capacity)
+    {
+        this.capacity = Math.max(0, capacity);
+        trim();
+    }
+
+    public synchronized int getCapacity()
+    {
+        return capacity;
+    }
+
+    public synchronized int size()
+    {
+        return idle.size();
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * Closes every statement in the cache, for a connection being closed
+     */
+    public synchronized void clear()
+    {
+        for (PreparedStatement stmt : idle.values()) {
+            close(stmt);
+        }
+        for (PreparedStatement stmt : borrowed.keySet()) {
+            close(stmt);
+        }
+        for (Held ref : references) {
+            ref.handle.closed = true;
+        }
+        for (Handle handle : held.values()) {
+            close(handle.stmt);
+        }
+
+        idle.clear();
+        borrowed.clear();
+        held.clear();
+        references.clear();
+    }
+
+    // Takes the idle statement for the SQL, or prepares a new one
+    private PreparedStatement take(String sql) throws SQLException
+    {
+        this.reclaim();
+
+        PreparedStatement stmt = idle.remove(sql);
+
+        if (stmt == null && capacity > 0) {
+            stmt = this.spare(sql);
+        }
+
+        if (stmt != null) {
+            hits++;
+            stmt.clearParameters();
+        }
+        else {
+            misses++;
+            stmt = connection.prepareStatement(sql);
+        }
+
+        return stmt;
+    }
+
+    // Takes the statement of a handle for the same SQL whose result set
+    // has been read, or returns null if there is none
+    private PreparedStatement spare(String sql)
+    {
+        for (Handle handle : held.values()) {
+            if (!handle.busy && handle.executed && !handle.batched && handle.sql.equals(sql)) {
+                return this.detach(handle);
+            }
+        }
+        return null;
+    }
+
+    // Takes the statement of a handle, which gets another one when it is
+    // used again
+    private PreparedStatement detach(Handle handle)
+    {
+        PreparedStatement stmt = handle.stmt;
+
+        held.remove(stmt);
+        handle.stmt = null;
+        handle.busy = false;
+        handle.executed = false;
+
+        return stmt;
+    }
+
+    // Gives a handle that gave up its statement a statement again, with
+    // the parameters and settings it had
+    private PreparedStatement attach(Handle handle) throws SQLException
+    {
+        if (handle.stmt != null) {
+            return handle.stmt;
+        }
+
+        PreparedStatement stmt = this.take(handle.sql);
+
+        try {
+            for (Object[] setting : handle.settings.values()) {
+                ((Method)setting[0]).invoke(stmt, (Object[])setting[1]);
+            }
+        }
+        catch(InvocationTargetException e) {
+            close(stmt);
+
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException)e.getCause();
+            }
+            throw new SQLException(e.getCause().toString());
+        }
+        catch(IllegalAccessException e) {
+            close(stmt);
+            throw new SQLException(e.toString());
+        }
+
+        handle.stmt = stmt;
+        held.put(stmt, handle);
+        this.limit();
+
+        return stmt;
+    }
+
+    // Closes the statement of a handle when scripts hold too many, one
+    // whose result set has been read if there is any
+    private void limit()
+    {
+        if (held.size() <= MAX_HELD) {
+            return;
+        }
+
+        Handle victim = null;
+
+        for (Handle handle : held.values()) {
+            if (!handle.busy && !handle.batched) {
+                victim = handle;
+                break;
+            }
+            if (victim == null) {
+                victim = handle;
+            }
+        }
+
+        close(this.detach(victim));
+        evictions++;
+    }
+
+    // Closes the handles of statements that scripts have dropped
+    private void reclaim()
+    {
+        Reference<? extends PreparedStatement> ref;
+
+        while ((ref = dropped.poll()) != null) {
+            references.remove(ref);
+            this.closed(((Held)ref).handle);
+        }
+    }
+
+    // The script no longer holds the statement
+    private void closed(Handle handle)
+    {
+        if (handle.closed) {
+            return;
+        }
+
+        handle.closed = true;
+
+        if (!handle.busy && held.remove(handle.stmt) != null) {
+            this.idle(handle.stmt, handle.sql);
+        }
+    }
+
+    // Keeps a statement that is no longer used for reuse
+    private void idle(PreparedStatement stmt, String sql)
+    {
+        // Keep the newest statement if the SQL was prepared twice
+        PreparedStatement previous = idle.put(sql, stmt);
+
+        if (previous != null && previous != stmt) {
+            close(previous);
+            evictions++;
+        }
+
+        trim();
+    }
+
+    // Closes the least recently used statements until the cache fits
+    private void trim()
+    {
+        Iterator<PreparedStatement> it = idle.values().iterator();
+
+        while (idle.size() > capacity && it.hasNext()) {
+            close(it.next());
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private static void close(Statement stmt)
+    {
+        try {
+            stmt.close();
+        }
+        catch(SQLException e) {
+            // The statement is gone either way
+        }
+    }
+
+
+    /**
+     * Reference to the handle of a script, queued once the script no
+     * longer holds it
+     */
+    private static class Held extends WeakReference<PreparedStatement>
+    {
+        final Handle handle;
+
+        Held(PreparedStatement proxy, Handle handle, ReferenceQueue<PreparedStatement> queue) {
+            super(proxy, queue);
+            this.handle = handle;
+        }
+    }
+
+
+    /**
+     * Invocation handler for the handles given to scripts. Every call is
+     * passed on to the statement until the handle has been closed, and
+     * closing the handle gives the statement back to the cache, once no
+     * result set of it is being read.
+     */
+    private class Handle implements InvocationHandler
+    {
+        final String sql;
+
+        // The statement, or null while the handle has none
+        volatile PreparedStatement stmt;
+
+        // Parameters by index and other settings by name, with their
+        // method and arguments
+        final Map<Object, Object[]> settings = new LinkedHashMap<Object, Object[]>();
+
+        // Set while a result of the statement is being read, once it has
+        // been executed, while rows are added to a batch, and once the
+        // script no longer holds the statement
+        boolean busy;
+        boolean executed;
+        boolean batched;
+        volatile boolean closed;
+
+        Handle(PreparedStatement stmt, String sql) {
+            this.stmt = stmt;
+            this.sql = sql;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+
+            if (name.equals("isClosed")) {
+                PreparedStatement current = stmt;
+                return Boolean.valueOf(closed || (current != null && current.isClosed()));
+            }
+            else if (name.equals("equals")) {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            else if (name.equals("hashCode")) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            else if (name.equals("toString")) {
+                return "prepared statement " + sql;
+            }
+
+            if (name.equals("close")) {
+                synchronized (PreparedStatementCache.this) {
+                    closed(this);
+                }
+                return null;
+            }
+
+            PreparedStatement target;
+
+            synchronized (PreparedStatementCache.this) {
+                if (closed) {
+                    throw new SQLException("statement has been closed");
+                }
+
+                target = attach(this);
+
+                // Parameters are declared by PreparedStatement and set by
+                // index, settings such as the fetch size by Statement
+                if (name.equals("clearParameters")) {
+                    for (Iterator<Object> i = settings.keySet().iterator(); i.hasNext(); ) {
+                        if (i.next() instanceof Integer) {
+                            i.remove();
+                        }
+                    }
+                }
+                else if (name.startsWith("set") && args != null) {
+                    Object key = (method.getDeclaringClass() == PreparedStatement.class) ? args[0] : name;
+                    settings.put(key, new Object[] { method, args });
+                }
+                else if (name.equals("addBatch")) {
+                    batched = true;
+                }
+                else if (name.equals("executeBatch") || name.equals("clearBatch")) {
+                    batched = false;
+                }
+            }
+
+            try {
+                return method.invoke(target, args);
+            }
+            catch(InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+}
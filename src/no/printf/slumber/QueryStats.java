@@ -0,0 +1,362 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+
+/**
+ * Query statistics for the JDBC bridge. Every query and update is counted
+ * three times: in the totals, in the statistics of its connection, and in
+ * the statistics of its SQL shape (the SQL with literals replaced by ?).
+ * The totals are also published through JMX as no.printf.slumber:type=JDBC.
+ *
+ * Queries slower than a configurable threshold can be logged.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class QueryStats
+{
+
+    // Number of latency histogram buckets. Bucket 0 counts executions
+    // under 1 ms, bucket i counts executions under 2^i ms, and the last
+    // bucket counts everything slower.
+    static final int BUCKETS = 20;
+
+    // Maximum number of SQL shapes tracked, the rest are counted as "other"
+    private static final int MAX_SHAPES = 1000;
+
+    // Statistics for all queries
+    static final Counter total = new Counter();
+
+    // Statistics per SQL shape
+    private static final ConcurrentHashMap<String, Counter> shapes = new ConcurrentHashMap<String, Counter>();
+
+    // SQL of prepared statements, so dbExecute() can be counted by shape
+    private static final WeakRegistry<Statement, String> preparedSql = new WeakRegistry<Statement, String>();
+
+    // Slow query log threshold in milliseconds, negative when turned off
+    private static volatile long slowThreshold = -1;
+
+    // Where slow queries are logged
+    private static volatile PrintStream slowLog = System.err;
+
+    // Number of slow queries logged
+    private static final AtomicLong slowQueries = new AtomicLong();
+
+    // Why the statistics could not be published through JMX, or null
+    private static volatile String jmxError;
+
+    static {
+        try {
+            // Stats is not named after its interface, so it is wrapped
+            // to be accepted as a standard MBean
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(new Stats(), JDBCStatsMBean.class),
+                    new ObjectName("no.printf.slumber:type=JDBC"));
+        }
+        catch(InstanceAlreadyExistsException e) {
+            // Already registered by another class loader
+        }
+        catch(Exception e) {
+            jmxError = e.toString();
+        }
+    }
+
+
+    private QueryStats()
+    {
+    }
+
+    /**
+     * Remembers the SQL a prepared statement was created with
+     */
+    public static void prepared(Statement stmt, String sql)
+    {
+        preparedSql.put(stmt, sql);
+    }
+
+    /**
+     * Returns the SQL a prepared statement was created with
+     */
+    public static String sqlOf(Statement stmt)
+    {
+        String sql = preparedSql.get(stmt);
+        return (sql == null) ? "?" : sql;
+    }
+
+    /**
+     * Records an execution that started at the given System.nanoTime().
+     * If the execution returned a result set, the rows fetched from it
+     * are added to the same statistics when it has been read.
+     */
+    public static void executed(Connection c, String sql, long start, ResultSet result, boolean failed)
+    {
+        long nanos = System.nanoTime() - start;
+
+        Counter connection = ConnectionState.of(c).stats;
+        Counter shape = QueryStats.shape(sql);
+
+        total.executed(nanos, failed);
+        connection.executed(nanos, failed);
+        shape.executed(nanos, failed);
+
+        if (result != null) {
+            ResultState.of(result).counters = new Counter[] { total, connection, shape };
+        }
+
+        long threshold = slowThreshold;
+
+        if (threshold >= 0 && nanos / 1000000 >= threshold) {
+            slowQueries.incrementAndGet();
+            slowLog.println("[slumber] slow query (" + (nanos / 1000000) + " ms): " + sql);
+        }
+    }
+
+    /**
+     * Sets the slow query log threshold in milliseconds. A negative
+     * threshold turns the log off. Queries are logged to the given
+     * stream, or to standard error if it is null. The stream that was
+     * logged to before is closed, unless it is standard error.
+     */
+    public static synchronized void setSlowLog(long threshold, PrintStream log)
+    {
+        PrintStream previous = slowLog;
+
+        slowLog = (log == null) ? System.err : log;
+        slowThreshold = threshold;
+
+        if (previous != System.err && previous != slowLog) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Returns why the statistics could not be published through JMX, or
+     * null if they were
+     */
+    public static String getJmxError()
+    {
+        return jmxError;
+    }
+
+    /**
+     * Returns the statistics for every SQL shape seen so far
+     */
+    public static Map<String, Counter> getShapes()
+    {
+        return shapes;
+    }
+
+    // Returns the counter for the shape of an SQL string
+    private static Counter shape(String sql)
+    {
+        String key = QueryStats.normalize(sql);
+        Counter counter = shapes.get(key);
+
+        if (counter == null) {
+            if (shapes.size() >= MAX_SHAPES) {
+                key = "other";
+            }
+
+            Counter created = new Counter();
+            counter = shapes.putIfAbsent(key, created);
+
+            if (counter == null) {
+                counter = created;
+            }
+        }
+
+        return counter;
+    }
+
+    /**
+     * Returns the shape of an SQL string: string and number literals are
+     * replaced by ?, and runs of whitespace by a single space.
+     */
+    static String normalize(String sql)
+    {
+        StringBuilder shape = new StringBuilder(sql.length());
+        int length = sql.length();
+        int i = 0;
+
+        while (i < length) {
+            char c = sql.charAt(i);
+
+            if (c == '\'' || c == '"') {
+                // Skip the string literal, including doubled quotes
+                i++;
+                while (i < length) {
+                    if (sql.charAt(i) == c) {
+                        if (i + 1 < length && sql.charAt(i + 1) == c) {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    if (sql.charAt(i) == '\\') {
+                        i++;
+                    }
+                    i++;
+                }
+                shape.append('?');
+                i++;
+            }
+            else if (Character.isDigit(c) && (shape.length() == 0 || !Character.isJavaIdentifierPart(shape.charAt(shape.length() - 1)))) {
+                // Skip the number literal
+                while (i < length && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                shape.append('?');
+            }
+            else if (Character.isWhitespace(c)) {
+                while (i < length && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                shape.append(' ');
+            }
+            else {
+                shape.append(c);
+                i++;
+            }
+        }
+
+        return shape.toString().trim();
+    }
+
+
+    /**
+     * Counters for a group of executions
+     */
+    static class Counter
+    {
+        final AtomicLong executions = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong fetchNanos = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        void executed(long time, boolean failed)
+        {
+            executions.incrementAndGet();
+            nanos.addAndGet(time);
+
+            if (failed) {
+                errors.incrementAndGet();
+            }
+
+            // Find the latency bucket
+            long millis = time / 1000000;
+            int bucket = 0;
+
+            while (millis > 0 && bucket < BUCKETS - 1) {
+                millis >>= 1;
+                bucket++;
+            }
+
+            histogram.incrementAndGet(bucket);
+        }
+
+        void fetched(long count, long time)
+        {
+            rows.addAndGet(count);
+            fetchNanos.addAndGet(time);
+        }
+
+        void reset()
+        {
+            executions.set(0);
+            errors.set(0);
+            nanos.set(0);
+            rows.set(0);
+            fetchNanos.set(0);
+
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram.set(i, 0);
+            }
+        }
+    }
+
+
+    /**
+     * The JMX view of the totals
+     */
+    private static class Stats implements JDBCStatsMBean
+    {
+        public long getExecutions() {
+            return total.executions.get();
+        }
+
+        public long getErrors() {
+            return total.errors.get();
+        }
+
+        public long getExecutionMillis() {
+            return total.nanos.get() / 1000000;
+        }
+
+        public long getRowsFetched() {
+            return total.rows.get();
+        }
+
+        public long getFetchMillis() {
+            return total.fetchNanos.get() / 1000000;
+        }
+
+        public long[] getLatencyHistogram() {
+            long[] buckets = new long[BUCKETS];
+
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = total.histogram.get(i);
+            }
+            return buckets;
+        }
+
+        public int getShapeCount() {
+            return shapes.size();
+        }
+
+        public long getSlowQueries() {
+            return slowQueries.get();
+        }
+
+        public long getSlowQueryThreshold() {
+            return slowThreshold;
+        }
+
+        public void setSlowQueryThreshold(long threshold) {
+            slowThreshold = threshold;
+        }
+
+        public void reset() {
+            total.reset();
+            shapes.clear();
+            slowQueries.set(0);
+        }
+    }
+}
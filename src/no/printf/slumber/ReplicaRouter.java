@@ -0,0 +1,754 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.Pattern;
+
+
+/**
+ * A connection handle over a primary database and its read replicas, used
+ * by dbConnectRouted(). The handle is a proxy for the primary connection,
+ * so it can be used anywhere a dbConnect() handle can. Queries that only
+ * read are sent to one of the healthy replicas instead, picked in turn
+ * (round-robin) or by the fewest statements running on it
+ * (least-outstanding). Everything else goes to the primary: updates,
+ * statements that use session state such as SELECT ... FOR UPDATE or
+ * LAST_INSERT_ID(), and every statement while a transaction is open.
+ * Prepared reads are routed every time they are executed, and prepared
+ * again on whichever connection they go to, with the parameters set so far.
+ *
+ * A shared background thread schedules the replica checks, which run on a
+ * thread of their own per replica and over a connection of their own, so
+ * neither a long query nor a replica that can not be reached holds up the
+ * others. Replicas that can not be reached, whose connection for queries
+ * has been lost, or that are further behind the primary than the lag
+ * threshold according to SHOW REPLICA STATUS (or SHOW SLAVE STATUS before
+ * MySQL 8.0.22) get no queries until a later check finds them healthy
+ * again. With no healthy replicas the queries go to the primary.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class ReplicaRouter implements InvocationHandler
+{
+
+    // Ways of picking a replica
+    static final int ROUND_ROBIN = 0;
+    static final int LEAST_OUTSTANDING = 1;
+
+    // Milliseconds dbConnectRouted() waits for the first replica checks
+    private static final long CONNECT_TIMEOUT = 10000;
+
+    // Statements that only read, unless they also match SESSION
+    private static final Pattern READ = Pattern.compile("^\\s*\\(*\\s*(select|show)\\b", Pattern.CASE_INSENSITIVE);
+
+    // Reads that lock rows or depend on the session of the primary
+    private static final Pattern SESSION = Pattern.compile(
+            "\\b(for\\s+update|lock\\s+in\\s+share\\s+mode|into|last_insert_id|found_rows|row_count|get_lock|release_lock|is_used_lock)\\b|@",
+            Pattern.CASE_INSENSITIVE);
+
+    // Shared background thread that schedules the replica checks
+    private static final ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "slumber-replica-monitor");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // Threads the checks of single replicas run on
+    private static final ExecutorService checks = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "slumber-replica-check");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // The replica of every replica connection in use
+    private static final ConcurrentHashMap<Connection, Replica> connections = new ConcurrentHashMap<Connection, Replica>();
+
+    private final Connection primary;
+    private final Replica[] replicas;
+    private final int balance;
+    private final long maxLag;
+
+    // Replica to start looking from, for round-robin
+    private final AtomicInteger next = new AtomicInteger();
+
+    // Scheduled replica checks, and whether the handle has been closed
+    private ScheduledFuture<?> check;
+    private volatile boolean closed;
+
+
+    private ReplicaRouter(Connection primary, Replica[] replicas, int balance, long maxLag)
+    {
+        this.primary = primary;
+        this.replicas = replicas;
+        this.balance = balance;
+        this.maxLag = maxLag;
+    }
+
+    /**
+     * Connects to a primary and its replicas, and returns the routed handle.
+     * Replicas that can not be reached yet are left for the replica checks,
+     * which run every interval milliseconds. A maxLag of 0 or less means
+     * the replication lag is not checked.
+     */
+    public static Connection connect(String url, String[] replicaUrls, String username, String password,
+            int balance, long maxLag, long interval) throws SQLException
+    {
+        Connection primary = DriverManager.getConnection(url, username, password);
+        Replica[] replicas = new Replica[replicaUrls.length];
+
+        for (int i = 0; i < replicas.length; i++) {
+            replicas[i] = new Replica(replicaUrls[i], username, password);
+        }
+
+        final ReplicaRouter router = new ReplicaRouter(primary, replicas, balance, maxLag);
+        List<Future<?>> first = router.checkReplicas();
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+
+        // Wait a while for the first checks, so reads can go to the
+        // replicas right away
+        for (Future<?> f : first) {
+            try {
+                f.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+            catch(TimeoutException e) {
+                // Left for the check to finish in the background
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch(ExecutionException e) {
+                // Checks catch their own errors
+            }
+        }
+
+        router.check = monitor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                router.checkReplicas();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+
+        return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class[] { Connection.class }, router);
+    }
+
+    /**
+     * Returns the router behind a routed handle, or null if the connection
+     * is not one
+     */
+    public static ReplicaRouter of(Connection c)
+    {
+        if (c != null && Proxy.isProxyClass(c.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(c);
+
+            if (handler instanceof ReplicaRouter) {
+                return (ReplicaRouter)handler;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the primary connection behind a routed handle, or the given
+     * connection itself if it is not a routed handle
+     */
+    public static Connection unwrap(Connection c)
+    {
+        ReplicaRouter router = ReplicaRouter.of(c);
+        return (router == null) ? c : router.primary;
+    }
+
+    /**
+     * Returns the primary connection of a routed handle or of one of its
+     * replica connections, whose state holds the timeouts and the running
+     * statements of the whole handle. Other connections are returned as
+     * they are.
+     */
+    public static Connection primaryOf(Connection c)
+    {
+        Replica replica = connections.get(c);
+        return (replica != null && replica.router != null) ? replica.router.primary : ReplicaRouter.unwrap(c);
+    }
+
+    /**
+     * Returns the connection a statement should be executed on: a replica
+     * for reads on a routed handle, or the primary. Connections that are
+     * not routed handles are returned as they are.
+     */
+    public static Connection route(Connection c, String sql) throws SQLException
+    {
+        ReplicaRouter router = ReplicaRouter.of(c);
+
+        if (router == null) {
+            return c;
+        }
+
+        if (!READ.matcher(sql).find() || SESSION.matcher(sql).find() || !router.primary.getAutoCommit()) {
+            return router.primary;
+        }
+
+        Replica replica = router.pick();
+        return (replica == null) ? router.primary : replica.connection;
+    }
+
+    /**
+     * Returns a handle to a prepared statement on a routed handle, or on
+     * the connection itself if it is not one. Reads are prepared again on
+     * the connection they are routed to every time they are executed, see
+     * target().
+     */
+    public static PreparedStatement prepare(Connection c, String sql) throws SQLException
+    {
+        ReplicaRouter router = ReplicaRouter.of(c);
+
+        if (router == null || !READ.matcher(sql).find() || SESSION.matcher(sql).find()) {
+            return ConnectionState.of(ReplicaRouter.route(c, sql)).prepared.open(sql);
+        }
+
+        Routed routed = new Routed(c, sql);
+        routed.target();
+
+        return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class[] { PreparedStatement.class }, routed);
+    }
+
+    /**
+     * Returns the statement a prepared statement from prepare() is to be
+     * executed with, on the connection it is routed to now. Other
+     * statements are returned as they are.
+     */
+    public static PreparedStatement target(PreparedStatement stmt) throws SQLException
+    {
+        Routed routed = Routed.of(stmt);
+        return (routed == null) ? stmt : routed.target();
+    }
+
+    /**
+     * Returns the statement a prepared statement from prepare() was last
+     * executed with, or the statement itself if it is not one
+     */
+    public static Statement current(Statement stmt)
+    {
+        Routed routed = Routed.of(stmt);
+        return (routed == null) ? stmt : routed.current();
+    }
+
+    /**
+     * Called before a statement is executed on a connection, to count the
+     * statements running on every replica
+     */
+    public static void begin(Connection c)
+    {
+        Replica replica = connections.get(c);
+
+        if (replica != null) {
+            replica.outstanding.incrementAndGet();
+            replica.statements.incrementAndGet();
+        }
+    }
+
+    /**
+     * Called after a statement executed on a connection has finished
+     */
+    public static void end(Connection c)
+    {
+        Replica replica = connections.get(c);
+
+        if (replica != null) {
+            replica.outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the replicas, for dbRouteStats()
+     */
+    public Replica[] getReplicas()
+    {
+        return replicas.clone();
+    }
+
+    // Picks a healthy replica, or returns null if there are none
+    private Replica pick()
+    {
+        int start = next.getAndIncrement() & Integer.MAX_VALUE;
+        Replica best = null;
+
+        for (int i = 0; i < replicas.length; i++) {
+            Replica replica = replicas[(start + i) % replicas.length];
+
+            if (!replica.healthy || replica.connection == null) {
+                continue;
+            }
+
+            if (balance == ROUND_ROBIN) {
+                return replica;
+            }
+
+            if (best == null || replica.outstanding.get() < best.outstanding.get()) {
+                best = replica;
+            }
+        }
+
+        return best;
+    }
+
+    // Starts a check of every replica, reconnecting to those that were
+    // lost. A replica whose last check has not finished yet, because it
+    // can not be reached, gets no queries until it has.
+    private List<Future<?>> checkReplicas()
+    {
+        List<Future<?>> started = new ArrayList<Future<?>>();
+
+        for (int i = 0; i < replicas.length && !closed; i++) {
+            final Replica replica = replicas[i];
+
+            if (!replica.checking.compareAndSet(false, true)) {
+                replica.healthy = false;
+                continue;
+            }
+
+            started.add(checks.submit(new Runnable() {
+                public void run() {
+                    try {
+                        replica.check(ReplicaRouter.this, maxLag);
+                    }
+                    catch(SQLException e) {
+                        replica.healthy = false;
+                        replica.closeMonitor();
+                    }
+                    finally {
+                        replica.checking.set(false);
+                    }
+                }
+            }));
+        }
+
+        return started;
+    }
+
+    // Closes the primary and every replica
+    private synchronized void close() throws SQLException
+    {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        check.cancel(false);
+
+        for (int i = 0; i < replicas.length; i++) {
+            replicas[i].close();
+        }
+
+        ConnectionState.remove(primary);
+        primary.close();
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+        String name = method.getName();
+
+        if (name.equals("close")) {
+            this.close();
+            return null;
+        }
+        else if (name.equals("isClosed")) {
+            return Boolean.valueOf(closed);
+        }
+        else if (name.equals("equals")) {
+            return Boolean.valueOf(proxy == args[0]);
+        }
+        else if (name.equals("hashCode")) {
+            return Integer.valueOf(System.identityHashCode(proxy));
+        }
+        else if (name.equals("toString")) {
+            return "routed connection to " + primary.getMetaData().getURL() + " and " + replicas.length + " replicas";
+        }
+
+        if (closed) {
+            throw new SQLException("connection has been closed");
+        }
+
+        try {
+            return method.invoke(primary, args);
+        }
+        catch(InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+
+    /**
+     * A read replica: the connection queries are sent to, and the
+     * connection the checks use
+     */
+    static class Replica
+    {
+        final String url;
+        private final String username;
+        private final String password;
+
+        volatile Connection connection;
+        private volatile Connection monitorConnection;
+        private volatile ReplicaRouter router;
+
+        // Set while a check is running, and once the replica is closed
+        final AtomicBoolean checking = new AtomicBoolean();
+        private boolean closed;
+
+        // Whether the server only knows SHOW SLAVE STATUS
+        private boolean legacyStatus;
+
+        // Result of the last check, and seconds behind the primary or -1
+        volatile boolean healthy;
+        volatile long lag = -1;
+
+        // Statements running now, and executed in total
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicLong statements = new AtomicLong();
+
+        Replica(String url, String username, String password)
+        {
+            this.url = url;
+            this.username = username;
+            this.password = password;
+        }
+
+        // Reconnects if needed, and checks that the replica is reachable
+        // and not too far behind. The connection for queries is only
+        // validated while no statement is running on it, a lost one fails
+        // its statements until then.
+        void check(ReplicaRouter router, long maxLag) throws SQLException
+        {
+            this.router = router;
+
+            if (monitorConnection == null || !ConnectionPool.isValid(monitorConnection)) {
+                this.closeMonitor();
+                Connection c = DriverManager.getConnection(url, username, password);
+
+                synchronized (this) {
+                    if (closed) {
+                        c.close();
+                        return;
+                    }
+                    monitorConnection = c;
+                }
+            }
+
+            Connection current = connection;
+
+            if (current == null || current.isClosed()
+                    || (outstanding.get() == 0 && !ConnectionPool.isValid(current))) {
+                healthy = false;
+                this.closeConnection();
+                Connection c = DriverManager.getConnection(url, username, password);
+
+                synchronized (this) {
+                    if (closed) {
+                        c.close();
+                        return;
+                    }
+                    connections.put(c, this);
+                    connection = c;
+                }
+            }
+
+            if (maxLag > 0) {
+                lag = this.readLag();
+                healthy = lag >= 0 && lag <= maxLag;
+            }
+            else {
+                healthy = true;
+            }
+        }
+
+        // Reads the replication lag in seconds, -1 if replication is broken,
+        // or 0 if the server is not a replica. SHOW SLAVE STATUS is gone
+        // from MySQL 8.4, and SHOW REPLICA STATUS is new in 8.0.22, where
+        // Seconds_Behind_Master became Seconds_Behind_Source.
+        private long readLag() throws SQLException
+        {
+            Statement stmt = monitorConnection.createStatement();
+
+            try {
+                ResultSet result;
+
+                if (legacyStatus) {
+                    result = stmt.executeQuery("SHOW SLAVE STATUS");
+                }
+                else {
+                    try {
+                        result = stmt.executeQuery("SHOW REPLICA STATUS");
+                    }
+                    catch(SQLException e) {
+                        result = stmt.executeQuery("SHOW SLAVE STATUS");
+                        legacyStatus = true;
+                    }
+                }
+
+                if (!result.next()) {
+                    return 0;
+                }
+
+                long seconds = result.getLong(Replica.lagColumn(result.getMetaData()));
+                return result.wasNull() ? -1 : seconds;
+            }
+            finally {
+                stmt.close();
+            }
+        }
+
+        // Returns the lag column of a replica status, which is still named
+        // after the master on MariaDB and older MySQL versions
+        private static int lagColumn(ResultSetMetaData meta) throws SQLException
+        {
+            for (int i = 1; i <= meta.getColumnCount(); i++) {
+                String name = meta.getColumnLabel(i);
+
+                if (name.equalsIgnoreCase("Seconds_Behind_Source") || name.equalsIgnoreCase("Seconds_Behind_Master")) {
+                    return i;
+                }
+            }
+
+            throw new SQLException("replica status has no Seconds_Behind_Source column");
+        }
+
+        synchronized void close()
+        {
+            closed = true;
+            healthy = false;
+            this.closeMonitor();
+            this.closeConnection();
+        }
+
+        synchronized void closeMonitor()
+        {
+            if (monitorConnection != null) {
+                try {
+                    monitorConnection.close();
+                }
+                catch(SQLException e) {
+                    // Nothing more we can do with it
+                }
+                monitorConnection = null;
+            }
+        }
+
+        private synchronized void closeConnection()
+        {
+            Connection c = connection;
+            connection = null;
+
+            if (c != null) {
+                connections.remove(c);
+                ConnectionState.remove(c);
+
+                try {
+                    c.close();
+                }
+                catch(SQLException e) {
+                    // Nothing more we can do with it
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Invocation handler for prepared reads on a routed handle. The
+     * statement is prepared on every connection it is routed to, from the
+     * cache of that connection, and the parameters and settings given to
+     * the handle are set again on a statement it moves to. Other calls go
+     * to the statement it was last executed with.
+     */
+    private static class Routed implements InvocationHandler
+    {
+        private final Connection handle;
+        private final String sql;
+
+        // Statement on every connection the read has been routed to
+        private final Map<Connection, PreparedStatement> targets = new IdentityHashMap<Connection, PreparedStatement>();
+        private PreparedStatement current;
+
+        // Parameters by index and other settings by name, with their
+        // method and arguments
+        private final Map<Object, Object[]> settings = new LinkedHashMap<Object, Object[]>();
+        private boolean closed;
+
+        Routed(Connection handle, String sql)
+        {
+            this.handle = handle;
+            this.sql = sql;
+        }
+
+        // Returns the handler of a routed statement, or null
+        static Routed of(Statement stmt)
+        {
+            if (stmt != null && Proxy.isProxyClass(stmt.getClass())) {
+                InvocationHandler handler = Proxy.getInvocationHandler(stmt);
+
+                if (handler instanceof Routed) {
+                    return (Routed)handler;
+                }
+            }
+            return null;
+        }
+
+        synchronized PreparedStatement current()
+        {
+            return current;
+        }
+
+        // Routes the read, and returns the statement on that connection
+        // with the parameters and settings of the handle
+        synchronized PreparedStatement target() throws SQLException
+        {
+            if (closed) {
+                throw new SQLException("statement has been closed");
+            }
+
+            Connection c = ReplicaRouter.route(handle, sql);
+            PreparedStatement stmt = targets.get(c);
+
+            if (stmt == null) {
+                stmt = ConnectionState.of(c).prepared.open(sql);
+                QueryStats.prepared(stmt, sql);
+                targets.put(c, stmt);
+            }
+
+            if (stmt != current) {
+                stmt.clearParameters();
+
+                try {
+                    for (Object[] setting : settings.values()) {
+                        Routed.call(stmt, (Method)setting[0], (Object[])setting[1]);
+                    }
+                }
+                catch(SQLException e) {
+                    throw e;
+                }
+                catch(RuntimeException e) {
+                    throw e;
+                }
+                catch(Error e) {
+                    throw e;
+                }
+                catch(Throwable e) {
+                    throw new SQLException(e.toString());
+                }
+
+                current = stmt;
+            }
+
+            return stmt;
+        }
+
+        // Gives every statement back to the cache it came from
+        private synchronized void close() throws SQLException
+        {
+            closed = true;
+
+            for (PreparedStatement stmt : targets.values()) {
+                stmt.close();
+            }
+
+            targets.clear();
+            current = null;
+        }
+
+        private static Object call(PreparedStatement stmt, Method method, Object[] args) throws Throwable
+        {
+            try {
+                return method.invoke(stmt, args);
+            }
+            catch(InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+
+            if (name.equals("close")) {
+                this.close();
+                return null;
+            }
+            else if (name.equals("getConnection")) {
+                return handle;
+            }
+            else if (name.equals("equals")) {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            else if (name.equals("hashCode")) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            else if (name.equals("toString")) {
+                return "routed prepared statement " + sql;
+            }
+
+            PreparedStatement stmt;
+
+            synchronized (this) {
+                if (name.equals("isClosed")) {
+                    return Boolean.valueOf(closed);
+                }
+
+                if (closed) {
+                    throw new SQLException("statement has been closed");
+                }
+
+                // Parameters are declared by PreparedStatement and set by
+                // index, settings such as the fetch size by Statement
+                if (name.equals("clearParameters")) {
+                    for (Iterator<Object> i = settings.keySet().iterator(); i.hasNext(); ) {
+                        if (i.next() instanceof Integer) {
+                            i.remove();
+                        }
+                    }
+                }
+                else if (name.startsWith("set") && args != null) {
+                    Object key = (method.getDeclaringClass() == PreparedStatement.class) ? args[0] : name;
+                    settings.put(key, new Object[] { method, args });
+                }
+
+                stmt = current;
+            }
+
+            // Executions that do not come through target() are routed too,
+            // but batches stay on the statement they were added to
+            if (name.startsWith("execute") && args == null && !name.equals("executeBatch")) {
+                stmt = this.target();
+            }
+
+            return Routed.call(stmt, method, args);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+
+/**
+ * Cache of query results used by dbCachedQuery(). Results are keyed by the
+ * database url and user, the SQL and the bound values, and are kept as
+ * plain Java values so every hit can hand out fresh rows. Entries expire
+ * after their time to live, and the least recently used entries are
+ * evicted when the cache grows past its memory budget.
+ *
+ * The entries are split into segments by key, each with a lock of its
+ * own, so lookups of different queries rarely wait on each other.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class ResultCache
+{
+
+    // Default memory budget in bytes
+    static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+    // Number of segments, a power of two
+    private static final int SEGMENTS = 16;
+
+    // Estimated memory budget in bytes
+    private static volatile long capacity = DEFAULT_CAPACITY;
+
+    // Estimated memory used by the entries
+    private static final AtomicLong bytes = new AtomicLong();
+
+    // Entries of each segment, least recently used first
+    private static final Segment[] segments = new Segment[SEGMENTS];
+
+    // Statistics
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+    private static final AtomicLong expirations = new AtomicLong();
+
+    static {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+
+    private ResultCache()
+    {
+    }
+
+    /**
+     * Returns the key for a query on the given database. Values are keyed
+     * by their type as well, so 1 and "1" are different queries.
+     */
+    public static String key(String url, String user, String sql, List<Object> values)
+    {
+        StringBuilder key = new StringBuilder(url.length() + sql.length() + 32);
+        key.append(url).append('\u0000').append(user).append('\u0000').append(sql);
+
+        if (values != null) {
+            for (Object value : values) {
+                key.append('\u0000').append((value == null) ? "null" : value.getClass().getName());
+                key.append(':').append((value instanceof byte[]) ? Arrays.toString((byte[])value) : value);
+            }
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Returns a cached result, or null if there is none or it has expired
+     */
+    public static Entry get(String key)
+    {
+        Segment segment = ResultCache.segment(key);
+        Entry entry;
+
+        synchronized (segment) {
+            entry = segment.entries.get(key);
+
+            if (entry != null && entry.expires < System.currentTimeMillis()) {
+                segment.entries.remove(key);
+                bytes.addAndGet(-entry.bytes);
+                expirations.incrementAndGet();
+                entry = null;
+            }
+
+            if (entry != null) {
+                entry.used = System.nanoTime();
+            }
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+        }
+        else {
+            hits.incrementAndGet();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Caches a result until it expires
+     */
+    public static void put(String key, Entry entry)
+    {
+        // Results bigger than the whole cache are not kept
+        if (entry.bytes > capacity) {
+            return;
+        }
+
+        Segment segment = ResultCache.segment(key);
+
+        synchronized (segment) {
+            entry.used = System.nanoTime();
+            Entry previous = segment.entries.put(key, entry);
+
+            if (previous != null) {
+                bytes.addAndGet(-previous.bytes);
+            }
+
+            bytes.addAndGet(entry.bytes);
+        }
+
+        ResultCache.trim();
+    }
+
+    /**
+     * Removes every entry whose SQL matches the pattern, or every entry
+     * if the pattern is null. Returns the number of entries removed.
+     */
+    public static int invalidate(Pattern pattern)
+    {
+        int removed = 0;
+
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                Iterator<Entry> it = segment.entries.values().iterator();
+
+                while (it.hasNext()) {
+                    Entry entry = it.next();
+
+                    if (pattern == null || pattern.matcher(entry.sql).find()) {
+                        it.remove();
+                        bytes.addAndGet(-entry.bytes);
+                        removed++;
+                    }
+                }
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Sets the memory budget in bytes
+     */
+    public static void setCapacity(long budget)
+    {
+        capacity = Math.max(0, budget);
+        ResultCache.trim();
+    }
+
+    /**
+     * Returns the statistics as a map of names to numbers
+     */
+    public static Map<String, Long> getStats()
+    {
+        long size = 0;
+
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+        stats.put("hits", Long.valueOf(hits.get()));
+        stats.put("misses", Long.valueOf(misses.get()));
+        stats.put("evictions", Long.valueOf(evictions.get()));
+        stats.put("expirations", Long.valueOf(expirations.get()));
+        stats.put("entries", Long.valueOf(size));
+        stats.put("bytes", Long.valueOf(bytes.get()));
+        stats.put("capacity", Long.valueOf(capacity));
+        return stats;
+    }
+
+    /**
+     * Returns a copy of a cached value that a script may change, so hits
+     * never share byte arrays or dates with each other
+     */
+    public static Object copy(Object value)
+    {
+        if (value instanceof byte[]) {
+            return ((byte[])value).clone();
+        }
+
+        if (value instanceof java.util.Date) {
+            return ((java.util.Date)value).clone();
+        }
+
+        return value;
+    }
+
+    /**
+     * Returns a rough estimate of the memory used by a row of values
+     */
+    static long estimate(Object[] row)
+    {
+        long size = 16 + 8L * row.length;
+
+        for (int i = 0; i < row.length; i++) {
+            Object value = row[i];
+
+            if (value instanceof String) {
+                size += 40 + 2L * ((String)value).length();
+            }
+            else if (value instanceof byte[]) {
+                size += 16 + ((byte[])value).length;
+            }
+            else if (value != null) {
+                size += 24;
+            }
+        }
+
+        return size;
+    }
+
+    // Returns the segment of a key
+    private static Segment segment(String key)
+    {
+        int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    // Evicts the least recently used entries until the cache fits. The
+    // oldest entry of the cache is the oldest of the segment heads.
+    private static void trim()
+    {
+        while (bytes.get() > capacity) {
+            Segment oldest = null;
+            long used = 0;
+
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    Iterator<Entry> it = segment.entries.values().iterator();
+
+                    if (it.hasNext()) {
+                        Entry entry = it.next();
+
+                        if (oldest == null || entry.used - used < 0) {
+                            oldest = segment;
+                            used = entry.used;
+                        }
+                    }
+                }
+            }
+
+            if (oldest == null) {
+                return;
+            }
+
+            synchronized (oldest) {
+                Iterator<Entry> it = oldest.entries.values().iterator();
+
+                if (it.hasNext()) {
+                    Entry entry = it.next();
+                    it.remove();
+                    bytes.addAndGet(-entry.bytes);
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Entries of one segment of the cache
+     */
+    private static class Segment
+    {
+        final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+
+    /**
+     * A cached result
+     */
+    static class Entry
+    {
+        final String sql;
+        final ColumnSchema schema;
+        final List<Object[]> rows;
+        final long expires;
+        final long bytes;
+
+        // When the entry was last used, by System.nanoTime()
+        volatile long used;
+
+        Entry(String sql, ColumnSchema schema, List<Object[]> rows, long expires)
+        {
+            this.sql = sql;
+            this.schema = schema;
+            this.rows = rows;
+            this.expires = expires;
+            this.bytes = Entry.estimate(sql, rows);
+        }
+
+        // Rough estimate of the memory used by a result
+        private static long estimate(String sql, List<Object[]> rows)
+        {
+            long size = 64 + 2L * sql.length();
+
+            for (Object[] row : rows) {
+                size += ResultCache.estimate(row);
+            }
+
+            return size;
+        }
+    }
+}
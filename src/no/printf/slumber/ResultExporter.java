@@ -0,0 +1,381 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.sql.*;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Writes a result set to a file as CSV or JSON Lines for dbExport().
+ * Rows are formatted straight from the result set into a text buffer and
+ * encoded into a direct byte buffer that is written to a file channel,
+ * so the export runs in constant memory however large the result is.
+ * The byte buffer belongs to the export, so none is left behind in the
+ * pooled or virtual threads that run exports.
+ *
+ * CSV files start with a line of column labels, and values are quoted
+ * when they contain the delimiter, a quote or a line break. JSON Lines
+ * files have one object per row, with numbers and booleans unquoted.
+ * Binary columns are written as hex in both formats, and NULL is an
+ * empty field in CSV and null in JSON.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class ResultExporter
+{
+
+    // Size of the byte buffer, and of the text collected before encoding it
+    private static final int BUFFER_SIZE = 1 << 18;
+    private static final int TEXT_SIZE = 1 << 13;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // How values are written
+    private static final int NUMBER = 0;
+    private static final int BOOLEAN = 1;
+    private static final int BINARY = 2;
+    private static final int TEXT = 3;
+
+    private final boolean json;
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+    private final StringBuilder text = new StringBuilder(TEXT_SIZE * 2);
+
+
+    /**
+     * Opens the file for an export in the given format, "csv" or "jsonl"
+     */
+    ResultExporter(File file, String format, boolean gzip) throws IOException
+    {
+        if (format.equalsIgnoreCase("csv")) {
+            json = false;
+        }
+        else if (format.equalsIgnoreCase("jsonl")) {
+            json = true;
+        }
+        else {
+            throw new IOException("unknown export format '" + format + "', use csv or jsonl");
+        }
+
+        FileOutputStream out = new FileOutputStream(file);
+
+        if (gzip) {
+            channel = Channels.newChannel(new GZIPOutputStream(out, BUFFER_SIZE));
+        }
+        else {
+            channel = out.getChannel();
+        }
+
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /**
+     * Writes the remaining rows of a result set to the file and closes it.
+     * Returns the number of rows written.
+     */
+    public long export(ResultSet result, ResultState state) throws IOException, SQLException
+    {
+        long count = 0;
+
+        try {
+            ColumnSchema schema = state.getSchema();
+            int[] kinds = new int[schema.count];
+            String[] names = new String[schema.count];
+
+            for (int i = 0; i < schema.count; i++) {
+                kinds[i] = ResultExporter.kindOf(schema.types[i]);
+
+                StringBuilder name = new StringBuilder();
+
+                if (json) {
+                    this.appendJson(name, schema.labels[i]);
+                    name.append(':');
+                }
+                else {
+                    this.appendCsv(name, schema.labels[i]);
+                }
+                names[i] = name.toString();
+            }
+
+            // Column labels
+            if (!json) {
+                for (int i = 0; i < schema.count; i++) {
+                    text.append((i == 0) ? "" : ",").append(names[i]);
+                }
+                text.append('\n');
+            }
+
+            long start = System.nanoTime();
+
+            while (result.next()) {
+                text.append(json ? "{" : "");
+
+                for (int i = 0; i < schema.count; i++) {
+                    if (i > 0) {
+                        text.append(',');
+                    }
+                    if (json) {
+                        text.append(names[i]);
+                    }
+                    this.appendValue(result, i + 1, kinds[i]);
+                }
+
+                text.append(json ? "}\n" : "\n");
+                count++;
+
+                if (text.length() >= TEXT_SIZE) {
+                    this.write(false);
+                }
+            }
+
+            state.rows += count;
+            state.fetchNanos += System.nanoTime() - start;
+
+            this.write(true);
+        }
+        finally {
+            buffer.clear();
+            channel.close();
+        }
+
+        return count;
+    }
+
+    // Returns how a column of the given type is written
+    private static int kindOf(int type)
+    {
+        switch (type) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return NUMBER;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return BOOLEAN;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return BINARY;
+            default:
+                return TEXT;
+        }
+    }
+
+    // Formats a single value
+    private void appendValue(ResultSet result, int column, int kind) throws SQLException
+    {
+        String value;
+
+        switch (kind) {
+            case BOOLEAN:
+                boolean flag = result.getBoolean(column);
+                value = result.wasNull() ? null : (flag ? "true" : "false");
+                break;
+            case BINARY:
+                byte[] bytes = result.getBytes(column);
+                value = (bytes == null) ? null : ResultExporter.hex(bytes);
+                break;
+            default:
+                value = result.getString(column);
+        }
+
+        if (value == null) {
+            text.append(json ? "null" : "");
+        }
+        else if (kind == BOOLEAN || (kind == NUMBER && ResultExporter.isFinite(value))) {
+            text.append(value);
+        }
+        else if (json) {
+            this.appendJson(text, value);
+        }
+        else {
+            this.appendCsv(text, value);
+        }
+    }
+
+    // Numbers that are not valid JSON numbers, such as NaN, Infinity or
+    // 1., are written as strings
+    private static boolean isFinite(String number)
+    {
+        int length = number.length();
+        int i = (length > 0 && number.charAt(0) == '-') ? 1 : 0;
+
+        // Integer part, without leading zeros
+        int start = i;
+        i = ResultExporter.skipDigits(number, i);
+
+        if (i == start || (number.charAt(start) == '0' && i - start > 1)) {
+            return false;
+        }
+
+        // Fraction
+        if (i < length && number.charAt(i) == '.') {
+            start = ++i;
+            i = ResultExporter.skipDigits(number, i);
+
+            if (i == start) {
+                return false;
+            }
+        }
+
+        // Exponent
+        if (i < length && (number.charAt(i) == 'e' || number.charAt(i) == 'E')) {
+            i++;
+
+            if (i < length && (number.charAt(i) == '+' || number.charAt(i) == '-')) {
+                i++;
+            }
+
+            start = i;
+            i = ResultExporter.skipDigits(number, i);
+
+            if (i == start) {
+                return false;
+            }
+        }
+
+        return i == length;
+    }
+
+    // Returns the index of the first character from i that is not a digit
+    private static int skipDigits(String number, int i)
+    {
+        while (i < number.length() && number.charAt(i) >= '0' && number.charAt(i) <= '9') {
+            i++;
+        }
+
+        return i;
+    }
+
+    private static String hex(byte[] bytes)
+    {
+        char[] chars = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+
+        return new String(chars);
+    }
+
+    // Appends a CSV field, quoted if necessary
+    private void appendCsv(StringBuilder out, String value)
+    {
+        boolean quote = false;
+
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = (c == ',' || c == '"' || c == '\n' || c == '\r');
+        }
+
+        if (!quote) {
+            out.append(value);
+            return;
+        }
+
+        out.append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '"') {
+                out.append('"');
+            }
+            out.append(c);
+        }
+
+        out.append('"');
+    }
+
+    // Appends a JSON string
+    private void appendJson(StringBuilder out, String value)
+    {
+        out.append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '"':  out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+                    }
+                    else {
+                        out.append(c);
+                    }
+            }
+        }
+
+        out.append('"');
+    }
+
+    // Encodes the collected text into the byte buffer, writing the buffer
+    // to the file whenever it is full
+    private void write(boolean end) throws IOException
+    {
+        CharBuffer chars = CharBuffer.wrap(text);
+
+        while (encoder.encode(chars, buffer, end).isOverflow()) {
+            this.drain();
+        }
+
+        if (end) {
+            while (encoder.flush(buffer).isOverflow()) {
+                this.drain();
+            }
+            this.drain();
+        }
+
+        // Keep anything the encoder could not take yet, such as half
+        // of a surrogate pair
+        text.delete(0, chars.position());
+    }
+
+    private void drain() throws IOException
+    {
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+}
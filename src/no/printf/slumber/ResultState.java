@@ -0,0 +1,200 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.lang.ref.WeakReference;
+import java.sql.*;
+import java.util.*;
+
+
+/**
+ * State kept by the JDBC bridge for every result set handed to a script.
+ * Result sets that scripts stop reading are dropped together with their
+ * state, since they are only weakly referenced.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class ResultState
+{
+
+    // State for every open result set
+    private static final WeakRegistry<ResultSet, ResultState> states = new WeakRegistry<ResultSet, ResultState>();
+
+    // Columns of the result set, read on first use
+    private volatile ColumnSchema schema;
+
+    // Set when the statement was created for this result set alone,
+    // and must be closed together with it
+    volatile boolean ownsStatement;
+
+    // Rows fetched so far, and the time spent fetching them
+    long rows;
+    long fetchNanos;
+
+    // Statistics the fetched rows are added to when the result set is released
+    volatile QueryStats.Counter[] counters;
+
+    // Set once the result set has been read to the end
+    private volatile boolean released;
+
+    // Large object values fetched lazily, to be read before the result
+    // set is closed. Values the script drops are not kept alive.
+    private List<WeakReference<LobValue>> lobs;
+    private int prune = 1024;
+
+
+    private ResultState()
+    {
+    }
+
+    /**
+     * Returns the state for a result set, creating it if necessary
+     */
+    public static ResultState of(ResultSet result)
+    {
+        ResultState state = states.get(result);
+
+        if (state == null) {
+            ResultState created = new ResultState();
+            state = states.putIfAbsent(result, created);
+
+            if (state == null) {
+                state = created;
+            }
+        }
+
+        return state;
+    }
+
+    /**
+     * Returns the state for a result set, or null if it has none
+     */
+    public static ResultState get(ResultSet result)
+    {
+        return states.get(result);
+    }
+
+    /**
+     * Returns the columns of the result set. The meta data is only
+     * read the first time.
+     */
+    public synchronized ColumnSchema schema(ResultSet result) throws SQLException
+    {
+        if (schema == null) {
+            schema = new ColumnSchema(result.getMetaData());
+        }
+        return schema;
+    }
+
+    /**
+     * Returns the columns of the result set, once schema() has read them
+     */
+    public ColumnSchema getSchema()
+    {
+        return schema;
+    }
+
+    /**
+     * Checks if the result set has been read to the end
+     */
+    public boolean isReleased()
+    {
+        return released;
+    }
+
+    /**
+     * Keeps track of a large object value that has not been read yet
+     */
+    public synchronized void unread(LobValue lob)
+    {
+        if (lobs == null) {
+            lobs = new ArrayList<WeakReference<LobValue>>();
+        }
+
+        // Forget values that were dropped, before the list grows
+        if (lobs.size() >= prune) {
+            Iterator<WeakReference<LobValue>> it = lobs.iterator();
+
+            while (it.hasNext()) {
+                if (it.next().get() == null) {
+                    it.remove();
+                }
+            }
+
+            prune = Math.max(1024, lobs.size() * 2);
+        }
+
+        lobs.add(new WeakReference<LobValue>(lob));
+    }
+
+    /**
+     * Reads the large object values the script still has, while the result
+     * set is open and they can be read
+     */
+    public void readLobs()
+    {
+        List<WeakReference<LobValue>> unread;
+
+        synchronized (this) {
+            unread = lobs;
+            lobs = null;
+        }
+
+        if (unread == null) {
+            return;
+        }
+
+        for (WeakReference<LobValue> ref : unread) {
+            LobValue lob = ref.get();
+
+            try {
+                if (lob != null) {
+                    lob.load();
+                }
+            }
+            catch(SQLException e) {
+                // Flagged if the script reads the value
+            }
+        }
+    }
+
+    /**
+     * Marks the result set as read to the end, and adds the fetched rows
+     * to the query statistics. Returns false if it was already released.
+     */
+    public synchronized boolean release()
+    {
+        if (released) {
+            return false;
+        }
+
+        released = true;
+        QueryStats.Counter[] targets = counters;
+
+        if (targets != null) {
+            for (int i = 0; i < targets.length; i++) {
+                targets[i].fetched(rows, fetchNanos);
+            }
+        }
+
+        return true;
+    }
+}
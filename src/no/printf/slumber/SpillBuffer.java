@@ -0,0 +1,370 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.sql.*;
+import java.util.*;
+
+
+/**
+ * Row storage for buffered fetches that may not fit in the heap. Rows are
+ * kept as plain Java values until their estimated size reaches a memory
+ * budget, and the rows after that are written to a temporary file in a
+ * compact binary form. When every row has been added the file is mapped
+ * into memory, and spilled rows are decoded from the mapping when they
+ * are read, so the heap only holds the offset of every spilled row.
+ *
+ * The file is deleted as soon as it is mapped, where the platform allows
+ * it, and otherwise when the JVM exits. Numbers, strings, booleans, dates,
+ * decimals and binary values keep their type; other values are spilled as
+ * their string form.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class SpillBuffer
+{
+
+    // Rows never cross a mapped segment, so rows are limited to this size
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    // Value tags of the binary form
+    private static final byte NULL = 0;
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte FLOAT = 4;
+    private static final byte SHORT = 5;
+    private static final byte BYTE = 6;
+    private static final byte BOOLEAN = 7;
+    private static final byte STRING = 8;
+    private static final byte BYTES = 9;
+    private static final byte DECIMAL = 10;
+    private static final byte TIMESTAMP = 11;
+    private static final byte DATE = 12;
+    private static final byte TIME = 13;
+
+    private final long budget;
+    private long used;
+
+    // Rows kept in the heap, before the budget was reached
+    private final ArrayList<Object[]> rows = new ArrayList<Object[]>();
+
+    // Spilled rows: the file while writing, and the mapped segments and
+    // the offset of every row once done
+    private File file;
+    private DataOutputStream out;
+    private ByteArrayOutputStream rowBytes;
+    private DataOutputStream rowOut;
+    private long written;
+    private long[] offsets = new long[0];
+    private int spilled;
+    private MappedByteBuffer[] segments;
+
+
+    /**
+     * Creates a buffer that keeps rows in the heap until their estimated
+     * size reaches the given number of bytes
+     */
+    SpillBuffer(long budget)
+    {
+        this.budget = budget;
+    }
+
+    /**
+     * Adds a row, spilling it to the file once the budget has been reached
+     */
+    void add(Object[] row) throws IOException
+    {
+        if (out == null && used < budget) {
+            used += ResultCache.estimate(row);
+            rows.add(row);
+            return;
+        }
+
+        if (out == null) {
+            this.open();
+        }
+
+        // Encode the row first, to know if it fits in the current segment
+        rowBytes.reset();
+
+        for (int i = 0; i < row.length; i++) {
+            this.write(rowOut, row[i]);
+        }
+
+        int length = rowBytes.size();
+
+        if (length > SEGMENT_SIZE) {
+            throw new IOException("row of " + length + " bytes is too large to spill");
+        }
+
+        if (written / SEGMENT_SIZE != (written + length - 1) / SEGMENT_SIZE) {
+            long padding = SEGMENT_SIZE - written % SEGMENT_SIZE;
+
+            for (long i = 0; i < padding; i++) {
+                out.write(0);
+            }
+            written += padding;
+        }
+
+        if (spilled == offsets.length) {
+            offsets = Arrays.copyOf(offsets, Math.max(1024, spilled * 2));
+        }
+
+        offsets[spilled++] = written;
+        rowBytes.writeTo(out);
+        written += length;
+    }
+
+    /**
+     * Maps the spilled rows, after the last row has been added
+     */
+    void finish() throws IOException
+    {
+        if (out == null) {
+            return;
+        }
+
+        out.close();
+        out = null;
+        rowBytes = null;
+        rowOut = null;
+        offsets = Arrays.copyOf(offsets, spilled);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = raf.getChannel();
+            segments = new MappedByteBuffer[(int)((written + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+
+            for (int i = 0; i < segments.length; i++) {
+                long start = i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, written - start));
+            }
+        }
+        finally {
+            raf.close();
+            this.delete();
+        }
+    }
+
+    /**
+     * Gives up the file if the rows could not all be added
+     */
+    void discard()
+    {
+        if (out != null) {
+            try {
+                out.close();
+            }
+            catch(IOException e) {
+                // The file is deleted anyway
+            }
+            out = null;
+        }
+        this.delete();
+    }
+
+    /**
+     * Returns the number of rows
+     */
+    int size()
+    {
+        return rows.size() + spilled;
+    }
+
+    /**
+     * Returns the number of rows written to the file
+     */
+    int spilled()
+    {
+        return spilled;
+    }
+
+    /**
+     * Returns the values of a row, decoded from the mapping if the row
+     * was spilled
+     */
+    Object[] get(int index, int width)
+    {
+        if (index < rows.size()) {
+            return rows.get(index);
+        }
+
+        long offset = offsets[index - rows.size()];
+        ByteBuffer buffer = segments[(int)(offset / SEGMENT_SIZE)].duplicate();
+        buffer.position((int)(offset % SEGMENT_SIZE));
+
+        Object[] row = new Object[width];
+
+        for (int i = 0; i < width; i++) {
+            row[i] = SpillBuffer.read(buffer);
+        }
+
+        return row;
+    }
+
+    // Creates the file when the first row is spilled
+    private void open() throws IOException
+    {
+        file = File.createTempFile("slumber", ".spill");
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        rowBytes = new ByteArrayOutputStream(256);
+        rowOut = new DataOutputStream(rowBytes);
+    }
+
+    // Removes the file, which stays readable through the mapping
+    private void delete()
+    {
+        if (file != null && !file.delete()) {
+            file.deleteOnExit();
+        }
+        file = null;
+    }
+
+    // Writes a value with its tag
+    private void write(DataOutputStream out, Object value) throws IOException
+    {
+        if (value == null) {
+            out.writeByte(NULL);
+        }
+        else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt(((Integer)value).intValue());
+        }
+        else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong(((Long)value).longValue());
+        }
+        else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Double)value).doubleValue());
+        }
+        else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat(((Float)value).floatValue());
+        }
+        else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort(((Short)value).shortValue());
+        }
+        else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte(((Byte)value).byteValue());
+        }
+        else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean(((Boolean)value).booleanValue());
+        }
+        else if (value instanceof byte[]) {
+            byte[] bytes = (byte[])value;
+            out.writeByte(BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        else if (value instanceof BigDecimal) {
+            out.writeByte(DECIMAL);
+            this.writeString(out, value.toString());
+        }
+        else if (value instanceof Timestamp) {
+            out.writeByte(TIMESTAMP);
+            out.writeLong(((Timestamp)value).getTime());
+            out.writeInt(((Timestamp)value).getNanos());
+        }
+        else if (value instanceof java.sql.Date) {
+            out.writeByte(DATE);
+            out.writeLong(((java.sql.Date)value).getTime());
+        }
+        else if (value instanceof Time) {
+            out.writeByte(TIME);
+            out.writeLong(((Time)value).getTime());
+        }
+        else {
+            out.writeByte(STRING);
+            this.writeString(out, value.toString());
+        }
+    }
+
+    // Writes a string as its length and UTF-8 bytes
+    private void writeString(DataOutputStream out, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // Reads a value written by write()
+    private static Object read(ByteBuffer buffer)
+    {
+        switch (buffer.get()) {
+            case NULL:
+                return null;
+            case INT:
+                return Integer.valueOf(buffer.getInt());
+            case LONG:
+                return Long.valueOf(buffer.getLong());
+            case DOUBLE:
+                return Double.valueOf(buffer.getDouble());
+            case FLOAT:
+                return Float.valueOf(buffer.getFloat());
+            case SHORT:
+                return Short.valueOf(buffer.getShort());
+            case BYTE:
+                return Byte.valueOf(buffer.get());
+            case BOOLEAN:
+                return Boolean.valueOf(buffer.get() != 0);
+            case BYTES:
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                return bytes;
+            case DECIMAL:
+                return new BigDecimal(SpillBuffer.readString(buffer));
+            case TIMESTAMP:
+                Timestamp timestamp = new Timestamp(buffer.getLong());
+                timestamp.setNanos(buffer.getInt());
+                return timestamp;
+            case DATE:
+                return new java.sql.Date(buffer.getLong());
+            case TIME:
+                return new Time(buffer.getLong());
+            default:
+                return SpillBuffer.readString(buffer);
+        }
+    }
+
+    // Reads a string written by writeString()
+    private static String readString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+
+        try {
+            return new String(bytes, "UTF-8");
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.sql.*;
+import java.util.*;
+
+
+/**
+ * Cache of plain statements for a single connection. Statements are
+ * borrowed for as long as their result set is being read, so more than
+ * one query can be open on a connection at the same time. Returned
+ * statements are kept for reuse, and the least recently used ones are
+ * closed when there are too many of them. Results that a script stops
+ * reading without finishing them never give their statement back, so only
+ * the most recent MAX_BORROWED results can be read at the same time, and
+ * the statement of an older one is closed along with its result set.
+ *
+ * Every connection has its own cache, so scripts working on different
+ * connections never contend on the same lock.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class StatementCache
+{
+
+    // Maximum number of idle statements kept per connection
+    private static final int MAX_IDLE = 4;
+
+    // Maximum number of borrowed statements per connection. When this is
+    // reached the oldest one is closed, which is what happens to results
+    // that a script stops reading without finishing them.
+    private static final int MAX_BORROWED = 32;
+
+    private final Connection connection;
+
+    // Idle statements, most recently used first
+    private final LinkedList<Statement> idle = new LinkedList<Statement>();
+
+    // Borrowed statements, oldest first
+    private final LinkedHashSet<Statement> borrowed = new LinkedHashSet<Statement>();
+
+
+    StatementCache(Connection connection)
+    {
+        this.connection = connection;
+    }
+
+    /**
+     * Returns an idle statement, or a new one if there are none
+     */
+    public synchronized Statement borrow() throws SQLException
+    {
+        Statement stmt = idle.poll();
+
+        if (stmt == null) {
+
+            // Close the oldest statement if too many are in use
+            if (borrowed.size() >= MAX_BORROWED) {
+                Iterator<Statement> it = borrowed.iterator();
+                close(it.next());
+                it.remove();
+            }
+
+            stmt = connection.createStatement();
+        }
+
+        borrowed.add(stmt);
+        return stmt;
+    }
+
+    /**
+     * Gives a statement back to the cache. Returns false if the
+     * statement was not borrowed from this cache.
+     */
+    public synchronized boolean release(Statement stmt)
+    {
+        if (!borrowed.remove(stmt)) {
+            return false;
+        }
+
+        idle.addFirst(stmt);
+
+        // Close the least recently used statement
+        if (idle.size() > MAX_IDLE) {
+            close(idle.removeLast());
+        }
+
+        return true;
+    }
+
+    /**
+     * Closes every statement in the cache
+     */
+    public synchronized void clear()
+    {
+        for (Statement stmt : idle) {
+            close(stmt);
+        }
+        for (Statement stmt : borrowed) {
+            close(stmt);
+        }
+
+        idle.clear();
+        borrowed.clear();
+    }
+
+    private static void close(Statement stmt)
+    {
+        try {
+            stmt.close();
+        }
+        catch(SQLException e) {
+            // The statement is gone either way
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.sql.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Limits how long a statement may run. The driver is given the timeout
+ * with setQueryTimeout(), rounded up to whole seconds, and a shared
+ * watchdog thread calls Statement.cancel() when the timeout has passed,
+ * for drivers that ignore the query timeout and for timeouts that are
+ * not whole seconds.
+ *
+ * Every statement that is running is also known to the state of its
+ * connection, or of the primary connection for the replicas of a routed
+ * handle, so that dbCancel() can cancel it from another thread. A
+ * statement that was cancelled fails with an exception saying so.
+ *
+ * Once stop() has returned the statement is never cancelled any more,
+ * since on some drivers (MySQL's among them) a late cancel would hit the
+ * next statement run on the connection instead.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class StatementTimeout implements Runnable
+{
+
+    // Shared background thread that cancels statements
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "slumber-statement-watchdog");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final ConnectionState state;
+    private final Statement stmt;
+    private final long millis;
+
+    // Cancellation of the watchdog, null without a timeout
+    private ScheduledFuture<?> future;
+
+    // Set when the statement has been cancelled, and why
+    private volatile String cancelled;
+
+    // Set by stop(), guarded by the lock of the timeout
+    private boolean done;
+
+
+    private StatementTimeout(ConnectionState state, Statement stmt, long millis)
+    {
+        this.state = state;
+        this.stmt = stmt;
+        this.millis = millis;
+    }
+
+    /**
+     * Starts watching a statement that is about to be executed. A timeout
+     * below 0 means the default timeout of the connection, and a timeout
+     * of 0 means no timeout. stop() must be called when the statement is
+     * done.
+     */
+    public static StatementTimeout start(Connection c, Statement stmt, long millis) throws SQLException
+    {
+        ConnectionState state = ConnectionState.of(ReplicaRouter.primaryOf(c));
+        StatementTimeout timeout = new StatementTimeout(state, stmt, (millis < 0) ? state.getTimeout() : millis);
+
+        if (timeout.millis > 0) {
+            stmt.setQueryTimeout((int)Math.min(Integer.MAX_VALUE, (timeout.millis + 999) / 1000));
+            timeout.future = watchdog.schedule(timeout, timeout.millis, TimeUnit.MILLISECONDS);
+        }
+
+        state.running(timeout, true);
+        return timeout;
+    }
+
+    /**
+     * Stops watching the statement, and clears its query timeout so the
+     * statement can be reused without one
+     */
+    public void stop()
+    {
+        // Waits for a cancel that is under way to finish
+        synchronized (this) {
+            done = true;
+        }
+
+        state.running(this, false);
+
+        if (future != null) {
+            future.cancel(false);
+
+            try {
+                stmt.setQueryTimeout(0);
+            }
+            catch(SQLException e) {
+                // The statement is closed, and will not be reused
+            }
+        }
+    }
+
+    /**
+     * Returns the exception to throw for a failed statement, which says
+     * why the statement failed if it was cancelled
+     */
+    public SQLException failed(SQLException e)
+    {
+        String reason = cancelled;
+
+        if (reason == null) {
+            return e;
+        }
+
+        SQLException timedOut = new SQLException(reason, e.getSQLState(), e.getErrorCode());
+        timedOut.initCause(e);
+        return timedOut;
+    }
+
+    /**
+     * Cancels the statement, on behalf of dbCancel()
+     */
+    public void cancel()
+    {
+        this.cancel("statement was cancelled");
+    }
+
+    // Called by the watchdog when the timeout has passed
+    public void run()
+    {
+        this.cancel("statement timed out after " + millis + " ms");
+    }
+
+    private synchronized void cancel(String reason)
+    {
+        if (done) {
+            return;
+        }
+
+        cancelled = reason;
+
+        try {
+            stmt.cancel();
+        }
+        catch(SQLException e) {
+            // The statement has finished or the driver can not cancel it
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package no.printf.slumber;
+
+/**
+ * JDBC Bridge for the Sleep programming language
+ * Copyright (C) 2006 Andreas Ravnestad
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.util.*;
+
+
+/**
+ * A map from objects handed to scripts, such as result sets and
+ * statements, to the state the bridge keeps for them. Keys are only
+ * weakly referenced, so the state goes away with objects that scripts
+ * drop. The map is split into segments by the identity hash of the key,
+ * each with a lock of its own, so lookups for different keys from
+ * different threads rarely wait on each other.
+ *
+ * @author Andreas Ravnestad
+ * @since 1.1
+ */
+class WeakRegistry<K, V>
+{
+
+    // Number of segments, a power of two
+    private static final int SEGMENTS = 32;
+
+    private final WeakHashMap<K, V>[] segments;
+
+
+    @SuppressWarnings("unchecked")
+    WeakRegistry()
+    {
+        segments = new WeakHashMap[SEGMENTS];
+
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new WeakHashMap<K, V>();
+        }
+    }
+
+    /**
+     * Returns the value for a key, or null if it has none
+     */
+    public V get(K key)
+    {
+        WeakHashMap<K, V> segment = this.segment(key);
+
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    /**
+     * Sets the value for a key
+     */
+    public void put(K key, V value)
+    {
+        WeakHashMap<K, V> segment = this.segment(key);
+
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+
+    /**
+     * Sets the value for a key unless it already has one. Returns the
+     * value it already had, or null if the value was set.
+     */
+    public V putIfAbsent(K key, V value)
+    {
+        WeakHashMap<K, V> segment = this.segment(key);
+
+        synchronized (segment) {
+            V previous = segment.get(key);
+
+            if (previous == null) {
+                segment.put(key, value);
+            }
+            return previous;
+        }
+    }
+
+    /**
+     * Removes the value for a key, and returns it
+     */
+    public V remove(K key)
+    {
+        WeakHashMap<K, V> segment = this.segment(key);
+
+        synchronized (segment) {
+            return segment.remove(key);
+        }
+    }
+
+    private WeakHashMap<K, V> segment(K key)
+    {
+        int h = System.identityHashCode(key);
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+}